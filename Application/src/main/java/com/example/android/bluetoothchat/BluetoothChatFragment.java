@@ -22,11 +22,13 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.hardware.camera2.params.InputConfiguration;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -49,8 +51,15 @@ import android.widget.Toast;
 
 import com.example.android.common.logger.Log;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Calendar;
 import java.text.SimpleDateFormat;
 
@@ -81,6 +90,91 @@ public class BluetoothChatFragment extends Fragment {
     private String mBarCode = null; // バーコード文字列
     private String mQty = null;     // 印刷枚数
     private String mAddress = null; //Bluetoothアドレス
+
+    // 待機中の接続確認の間隔(ミリ秒)
+    private static final long HEARTBEAT_INTERVAL = 10 * 1000;
+
+    // 保守用コマンド: 接続時間の内訳を表示
+    private static final String COMMAND_TIMINGS = "#TIME";
+
+    // 保守用コマンド: 読み取り判定とラベル作成の速度を測定
+    private static final String COMMAND_BENCH = "#BENCH";
+
+    // 保守用コマンド: スキャナ直接入力の切替
+    private static final String COMMAND_SCAN = "#SCAN";
+
+    // 保守用コマンド: 連番印刷の中止
+    private static final String COMMAND_STOP = "#STOP";
+
+    // 連番印刷のバーコード(RUN:枚数) 999枚を超える印刷を分割して送信
+    private static final String RUN_PREFIX = "RUN:";
+
+    // 連番印刷で送信済み・印刷待ちにしておくジョブ数
+    private static final int RUN_WINDOW = 2;
+
+    // 連番印刷の1枚あたりの推定印刷時間(ミリ秒) プリンタは印刷完了を返さないため
+    private static final long RUN_MILLIS_PER_LABEL = 400;
+
+    // 保守用コマンド: 接続中のプリンタの文字コード(#CS:Shift_JIS など、#CS: のみで既定に戻す)
+    private static final String COMMAND_CHARSET = "#CS:";
+
+    // プリンタ別の文字コードの保存先
+    private static final String PREFS_CHARSETS = "printer_charsets";
+
+    // 保守用コマンド: 品番マスタ(parts.csv)の取り込み
+    private static final String COMMAND_PARTS = "#PARTS";
+
+    // ラベルテンプレートの項目名(その他の項目は品番マスタの項目)
+    private static final String LABEL_PART = "part";
+    private static final String LABEL_DATE = "date";
+    private static final String LABEL_QTY = "qty";
+    private static final String LABEL_SERIAL = "serial";
+    private static final String LABEL_TOTAL = "total";
+    private static final String LABEL_DIGITS = "digits";
+
+    // プリンタ別のラベルテンプレートを置くフォルダ(アプリの外部ファイル領域)
+    private static final String LABEL_DIR = "labels";
+
+    // 品番マスタのCSV(アプリの外部ファイル領域に置く)と取り込み先
+    private static final String PARTS_CSV = "parts.csv";
+    private static final String PARTS_CATALOG = "parts.catalog";
+
+    // スキャナ直接入力で、この時間キー入力がなければ読み取り終了(ミリ秒)
+    private static final long SCAN_KEY_TIMEOUT = 50;
+
+    // プリンタグループのバーコード(GRP:グループ名)
+    private static final String GROUP_PREFIX = "GRP:";
+
+    // 読み取り判定の回数(#BENCH)
+    private static final int BENCH_ROUNDS = 2000;
+
+    // ラベル作成の回数(#BENCH)
+    private static final int BENCH_JOBS = 20000;
+
+    /**
+     * Tells quantities, printer addresses, commands, groups and part numbers apart
+     */
+    private final ScanClassifier mScanClassifier = new ScanClassifier(Arrays.asList(
+            ScanClassifier.digits(ScanClassifier.Kind.QUANTITY, 0, 3),
+            ScanClassifier.upperHex(ScanClassifier.Kind.PRINTER, 12),
+            ScanClassifier.exact(ScanClassifier.Kind.COMMAND,
+                    COMMAND_TIMINGS, COMMAND_BENCH, COMMAND_SCAN, COMMAND_PARTS,
+                    COMMAND_STOP),
+            ScanClassifier.prefix(ScanClassifier.Kind.COMMAND, COMMAND_CHARSET),
+            ScanClassifier.prefix(ScanClassifier.Kind.GROUP, GROUP_PREFIX),
+            ScanClassifier.prefix(ScanClassifier.Kind.RUN, RUN_PREFIX),
+            ScanClassifier.gs1(ScanClassifier.Kind.GS1)));
+
+    /**
+     * Printer groups by name, and the group jobs are sent to (null for a single printer)
+     */
+    private final Map<String, PrinterGroup> mGroups = new HashMap<String, PrinterGroup>();
+    private PrinterGroup mGroup = null;
+
+    /**
+     * Takes scanner keys at the activity, before they reach the EditText
+     */
+    private ScanCapture mScanCapture;
     /**
      * Name of the connected device
      */
@@ -96,22 +190,67 @@ public class BluetoothChatFragment extends Fragment {
      */
     private StringBuffer mOutStringBuffer;
 
+    /**
+     * Built-in label script (res/raw/label_davinci.txt), compiled once, and the job reused
+     * for every label while the template stays the same
+     */
+    private LabelTemplate mLabelTemplate = null;
+    private LabelTemplate.Job mLabelJob = null;
+
+    /**
+     * Label templates of each printer from the labels directory, or null to use the built-in one
+     */
+    private TemplateRegistry mTemplates = null;
+
+    /**
+     * The serial run being printed, or null, and the date printed on its labels
+     */
+    private SerialRun mRun = null;
+    private String mRunDate = null;
+
     /**
      * Local Bluetooth adapter
      */
     private BluetoothAdapter mBluetoothAdapter = null;
 
+    /**
+     * Bluetooth devices and their names, looked up once
+     */
+    private DeviceRegistry mDevices = null;
+
     /**
      * Member object for the chat services
      */
     private BluetoothChatService mChatService = null;
 
+    /**
+     * Spool that keeps print jobs until they have been sent
+     */
+    private PrintSpool mSpool = null;
+
+    /**
+     * Part master the scanned part numbers are checked against, or null to accept any
+     */
+    private PartCatalog mCatalog = null;
+
+    /**
+     * The catalog entry of the scanned part, or null if there is no catalog
+     */
+    private PartCatalog.Part mPart = null;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDevices = DeviceRegistry.getInstance();
+        mScanCapture = new ScanCapture(new ScanCapture.Listener() {
+            @Override
+            public void onScan(String scan) {
+                inputText(scan);
+            }
+        }, SCAN_KEY_TIMEOUT);
 
         // If the adapter is null, then Bluetooth is not supported
         if (mBluetoothAdapter == null) {
@@ -139,9 +278,19 @@ public class BluetoothChatFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mScanCapture != null) {
+            // Drops a partly read scan and its pending timeout
+            mScanCapture.setEnabled(false);
+        }
         if (mChatService != null) {
             mChatService.stop();
         }
+        if (mSpool != null) {
+            mSpool.close();
+        }
+        if (mTemplates != null) {
+            mTemplates.stop();
+        }
     }
 
     @Override
@@ -205,6 +354,57 @@ public class BluetoothChatFragment extends Fragment {
 
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(getActivity(), mHandler);
+        // DaVinciへ接続するだけなので待ち受けはしない
+        mChatService.setClientOnly(true);
+
+        // 待機中も接続を確認し、切断されたらすぐに再接続する
+        mChatService.setHeartbeat(HEARTBEAT_INTERVAL, null);
+        mChatService.setReconnectPolicy(ReconnectPolicy.DEFAULT);
+
+        // 印刷ジョブのスプール(送信完了まで保存)
+        try {
+            mSpool = new PrintSpool(new File(getActivity().getFilesDir(), "print_spool.journal"));
+            mChatService.setSpool(mSpool);
+        } catch (IOException e) {
+            Log.e(TAG, "spool not available", e);
+        }
+
+        // プリンタ別の文字コード
+        SharedPreferences charsets = getActivity().getSharedPreferences(PREFS_CHARSETS,
+                Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> e : charsets.getAll().entrySet()) {
+            try {
+                mChatService.setCharset(e.getKey(), Charset.forName(String.valueOf(e.getValue())));
+            } catch (IllegalArgumentException ex) {
+                Log.e(TAG, "unknown charset for " + e.getKey(), ex);
+            }
+        }
+
+        // ラベルテンプレート
+        try {
+            InputStream in = getResources().openRawResource(R.raw.label_davinci);
+            try {
+                mLabelTemplate = LabelTemplate.load(in, Charset.forName("UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "label template not available", e);
+        }
+        File labels = getActivity().getExternalFilesDir(LABEL_DIR);
+        if (mLabelTemplate != null && labels != null) {
+            startTemplates(labels);
+        }
+
+        // 品番マスタ
+        File catalog = new File(getActivity().getFilesDir(), PARTS_CATALOG);
+        if (catalog.exists()) {
+            try {
+                mCatalog = PartCatalog.open(catalog);
+            } catch (IOException e) {
+                Log.e(TAG, "part catalog not available", e);
+            }
+        }
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -212,6 +412,9 @@ public class BluetoothChatFragment extends Fragment {
         addListView(getResources().getText(R.string.app_name).toString()
                     + " " + getResources().getText(R.string.version).toString());
         addListView("DaVinci本体のバーコードを読み込んで下さい。");
+        if (mSpool != null && mSpool.getPendingCount() > 0) {
+            addListView("未印刷：" + mSpool.getPendingCount() + "件 (接続後に印刷します)");
+        }
     }
 
     /**
@@ -246,15 +449,77 @@ public class BluetoothChatFragment extends Fragment {
 
         // Check that there's actually something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
-            mChatService.write(send);
+            // Tell the BluetoothChatService to write; it encodes into a pooled buffer
+            mChatService.write(message);
           // Reset out string buffer to zero and clear the edit text field
 //            mOutStringBuffer.setLength(0);
 //            mOutEditText.setText(mOutStringBuffer);
         }
     }
 
+    /**
+     * Sends a whole print job in a single write.
+     *
+     * @param job The label job, rendered straight into the write buffer.
+     */
+    private void sendJob(LabelTemplate.Job job) {
+        mChatService.writeJob(job);
+    }
+
+    /**
+     * ラベル印刷ジョブ(JOB～JOBE)を作成
+     * Fills the fields of the label template: the part number, date,
+     * quantity and serial numbers, and the catalog fields of the part for
+     * any other field.
+     *
+     * @param date        The date printed on the label.
+     * @param first       The serial number of the first label of the job.
+     * @param qty         The number of labels of the job.
+     * @param total       The number of labels of the whole run.
+     * @param address     The address of the printer, or null if unknown.
+     * @param printerName The name of the printer, or null to look it up.
+     * @return The job, reused for every label with the same template.
+     */
+    private LabelTemplate.Job buildLabelJob(String date, int first, String qty, String total,
+                                            String address, String printerName) {
+        LabelTemplate template = mLabelTemplate;
+        if (mTemplates != null) {
+            MacAddress mac = address != null ? MacAddress.tryParse(address) : null;
+            if (printerName == null && mac != null) {
+                printerName = mDevices.getName(mac);
+            }
+            template = mTemplates.get(mac, printerName);
+        }
+        if (mLabelJob == null || mLabelJob.getTemplate() != template) {
+            mLabelJob = template.newJob();
+        }
+        LabelTemplate.Job job = mLabelJob;
+        int digits = SerialRun.serialDigits(Integer.parseInt(total));
+        for (int i = 0; i < template.getFieldCount(); i++) {
+            String name = template.getFieldName(i);
+            if (name.equals(LABEL_PART)) {
+                job.setText(i, mBarCode);
+            } else if (name.equals(LABEL_DATE)) {
+                job.setText(i, date);
+            } else if (name.equals(LABEL_QTY)) {
+                if (template.getFieldType(i) == LabelTemplate.Type.INT) {
+                    job.setInt(i, Integer.parseInt(qty));
+                } else {
+                    job.setText(i, qty);
+                }
+            } else if (name.equals(LABEL_SERIAL)) {
+                job.setText(i, SerialRun.formatSerial(first, digits));
+            } else if (name.equals(LABEL_TOTAL)) {
+                job.setText(i, total);
+            } else if (name.equals(LABEL_DIGITS)) {
+                job.setInt(i, digits);
+            } else {
+                job.setText(i, mPart != null ? mPart.get(name) : null);
+            }
+        }
+        return job;
+    }
+
     /**
      * The action listener for the EditText widget, to listen for the return key
      * テキスト入力イベント KeyEvent.ACTION_UP
@@ -279,46 +544,32 @@ public class BluetoothChatFragment extends Fragment {
         mOutEditText.setText(mOutStringBuffer);
     }
 
-    /**
-     * BlueTooth MACアドレス
-     */
-    private Boolean isMACAdrs(String macAdrs) {
-//        String reg = "^([0-9A-Fa-f]{2}[:-]){5}[0-9A-Fa-f]{2}$";
-        String reg = "^([0-9A-F]{2}){6}$";
-
-        Pattern p = Pattern.compile(reg);
-        Matcher m = p.matcher(macAdrs);
-
-        return m.find();
-    }
-
-    /**
-     * 印刷枚数(数字３桁)かどうか
-     */
-    private boolean isQty(String s) {
-        s = s.trim();
-        if (s.length() == 0) {
-            // 空白は 1
-            mQty = "1";
-            return true;
-        }
-        // 数字３桁(999)
-        Pattern p = Pattern.compile("^\\d{1,3}$");
-        Matcher m = p.matcher(s);
-        if (!m.find()) {
-            return false;
-        }
-        mQty = s;
-        return true;
-    }
-
     /**
      * 入力処理
      */
     private void inputText(String s) {
         s = s.trim();
-        if (isQty(s) == true) {
-            //数字(枚数)
+        ScanClassifier.Kind kind = mScanClassifier.classify(s);
+        if (kind == ScanClassifier.Kind.QUANTITY || kind == ScanClassifier.Kind.RUN) {
+            if (mRun != null) {
+                addListView("連番印刷中です。中止は " + COMMAND_STOP);
+                clearText();
+                return;
+            }
+            int run = 0;
+            if (kind == ScanClassifier.Kind.RUN) {
+                // 連番印刷(枚数)
+                run = parseRun(s.substring(RUN_PREFIX.length()).trim());
+                if (run <= 0) {
+                    addListView("連番印刷の枚数が正しくありません：" + s);
+                    clearText();
+                    return;
+                }
+                mQty = Integer.toString(run);
+            } else {
+                //数字(枚数) 空白は 1
+                mQty = s.length() == 0 ? "1" : s;
+            }
             //現在日時を取得する
             Calendar c = Calendar.getInstance();
             //フォーマットパターンを指定して表示する
@@ -326,66 +577,496 @@ public class BluetoothChatFragment extends Fragment {
             String mDate = sdf.format(c.getTime());
 
             addListView("印刷開始");
-            addListView(mConnectedDeviceName + "：" + mAddress);
+            if (mGroup != null) {
+                addListView("グループ：" + mGroup.getName());
+            } else {
+                addListView(mConnectedDeviceName + "：" + mAddress);
+            }
             addListView("品番：" + mBarCode);
             addListView("日付：" + mDate);
             addListView("枚数：" + mQty);
+            if (mLabelTemplate == null) {
+                addListView("ラベルテンプレートがありません");
+                clearText();
+                return;
+            }
+            if (mGroup != null) {
+                if (run > 0) {
+                    startRun(run, mDate);
+                    clearText();
+                    return;
+                }
+                // グループ内で一番空いているプリンタに送信
+                String printer = mChatService.choosePrinter(mGroup);
+                if (printer != null && mChatService.writeJob(printer,
+                        buildLabelJob(mDate, 1, mQty, mQty, printer, null))) {
+                    addListView("印刷先：" + printer);
+                } else {
+                    addListView("グループにDaVinciがありません。本体のバーコードを読み込んで下さい。");
+                }
+                clearText();
+                return;
+            }
 //            addListView("接続: " + mAddress);
 //            connectDeviceByAddress(mAddress,false);
             if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
                 if ( mAddress != null) {
                     addListView("再接続: " + mAddress);
                     connectDeviceByAddress(mAddress, false);
+                    if (mSpool != null) {
+                        addListView("接続後に印刷します");
+                    }
                 }else{
                     addListView("DaVinciと切断されました。本体のバーコードを読み込んで下さい。");
                     return;
                 }
             }
-            sendMessage("JOB\n");
-            sendMessage("DEF MK=1,MD=1,DR=2,DK=12,MS=39,PO=45,TO=110,PH=344,PW=384,UM=12,BM=12,XO=0,AF=1\n");
-            sendMessage("START\n");
-            sendMessage("BCD TP=7,X=0,Y=0,NW=1,RA=2,MG=1,HT=80\n");
-            sendMessage(mBarCode + "\n");
-            sendMessage("FONT TP=7,CS=0,LG=60,WD=48,LS=0\n");
-            sendMessage("TEXT X=0,Y=120,L=1\n");
-            sendMessage(mBarCode + "\n");
-            sendMessage("FONT TP=27,CS=0,LG=32,WD=32,LS=0\n");
-            sendMessage("TEXT X=0,Y=260,L=1\n");
-            sendMessage(mDate + "\n");
-            sendMessage("TEXT X=250,Y=260,L=1,NS=1,NE=3,NK=1,NI=1,NZ=1,NB=0\n");
-            sendMessage("001/" + mQty + "\n");
-            sendMessage("QTY P=" + mQty + "\n");
-            sendMessage("END\n");
-            sendMessage("JOBE\n");
-            addListView("印刷終了");
+            if (run > 0) {
+                // 999枚ずつのジョブに分けて連続送信
+                startRun(run, mDate);
+                clearText();
+                return;
+            }
+            // JOB～JOBE をまとめて1回で送信
+            sendJob(buildLabelJob(mDate, 1, mQty, mQty,
+                    mChatService.getConnectedAddress(), mConnectedDeviceName));
             //　入力欄をクリア
             clearText();
             return;
         }
-        if (isMACAdrs(s) == true) {
-            // 画面にMACアドレスを表示
-            mAddress = s.substring(0,2)
-                        + ":" + s.substring(2,4)
-                        + ":" + s.substring(4,6)
-                        + ":" + s.substring(6,8)
-                        + ":" + s.substring(8,10)
-                        + ":" + s.substring(10);
+        if (kind == ScanClassifier.Kind.PRINTER) {
+            // BlueTooth MACアドレス(16進12桁)を画面に表示
+            mAddress = MacAddress.parse(s).toString();
             addListView("接続: " + mAddress);
+            if (mGroup != null && mGroup.add(mAddress)) {
+                addListView("グループ追加：" + mGroup.getName());
+            }
             // MACアドレス
             connectDeviceByAddress(mAddress,false);
             //　入力欄をクリア
             clearText();
             return;
         }
-        // 品番
+        if (kind == ScanClassifier.Kind.COMMAND) {
+            if (s.equals(COMMAND_TIMINGS)) {
+                // 接続時間の内訳
+                showConnectTimings();
+            } else if (s.equals(COMMAND_BENCH)) {
+                // 読み取り判定とラベル作成の速度
+                showBenchmarks();
+            } else if (s.equals(COMMAND_SCAN)) {
+                // スキャナ直接入力の切替
+                toggleScanCapture();
+            } else if (s.equals(COMMAND_PARTS)) {
+                // 品番マスタの取り込み
+                importParts();
+            } else if (s.equals(COMMAND_STOP)) {
+                // 連番印刷の中止
+                stopRun();
+            } else if (s.startsWith(COMMAND_CHARSET)) {
+                // プリンタの文字コード
+                setPrinterCharset(s.substring(COMMAND_CHARSET.length()).trim());
+            }
+            clearText();
+            return;
+        }
+        if (kind == ScanClassifier.Kind.GROUP) {
+            // プリンタグループ
+            selectGroup(s.substring(GROUP_PREFIX.length()).trim());
+            clearText();
+            return;
+        }
+        // 品番 (GS1 バーコードもそのまま品番とする)
+        PartCatalog.Part part = null;
+        if (mCatalog != null) {
+            // 品番マスタにない品番は読み間違いとして印刷しない
+            part = mCatalog.lookup(s);
+            if (part == null) {
+                addListView("品番未登録：" + s + " 読み直して下さい。");
+                clearText();
+                return;
+            }
+        }
+        mPart = part;
         mBarCode = s;
-        addListView("品番:" + mBarCode);
+        addListView(part != null ? "品番:" + mBarCode + " " + part.getFields().values()
+                : "品番:" + mBarCode);
         //　入力欄をクリア
         clearText();
 //        mOutEditText.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_CLASS_TEXT);
         return;
     }
 
+    /**
+     * プリンタグループ選択
+     * Selects the printer group jobs are sent to, creating it on first use.
+     * An empty name goes back to printing on a single printer.
+     *
+     * @param name The name of the group.
+     */
+    private void selectGroup(String name) {
+        if (name.length() == 0) {
+            mGroup = null;
+            mChatService.setGroup(null);
+            addListView("グループ解除");
+            return;
+        }
+        mGroup = mGroups.get(name);
+        if (mGroup == null) {
+            mGroup = new PrinterGroup(name);
+            mGroups.put(name, mGroup);
+        }
+        // Keep every member connected while the group is used
+        mChatService.setGroup(mGroup);
+        addListView("グループ：" + name + " (" + mGroup.size() + "台)");
+        addListView("DaVinci本体のバーコードを読み込むとグループに追加します。");
+    }
+
+    /**
+     * Shows where the connection time of each printer went, phase by phase.
+     */
+    private void showConnectTimings() {
+        ConnectTimings timings = mChatService.getConnectTimings();
+        List<String> addresses = timings.getAddresses();
+        if (addresses.isEmpty()) {
+            addListView("接続時間：記録なし");
+            return;
+        }
+        for (String address : addresses) {
+            StringBuilder lines = new StringBuilder("接続時間：").append(address);
+            for (String line : timings.describe(address)) {
+                lines.append('\n').append(line);
+            }
+            addListView(lines.toString());
+        }
+    }
+
+    /**
+     * スキャナ直接入力
+     * Called by the activity with every key event before it is dispatched.
+     *
+     * @return true if the key was taken by the scanner capture
+     */
+    public boolean onScannerKey(KeyEvent event) {
+        return mScanCapture != null && mScanCapture.onKeyEvent(event);
+    }
+
+    /**
+     * Turns the scanner capture on or off and shows how fast scans were dispatched.
+     */
+    private void toggleScanCapture() {
+        boolean enabled = !mScanCapture.isEnabled();
+        mScanCapture.setEnabled(enabled);
+        addListView(enabled ? "スキャナ直接入力：オン" : "スキャナ直接入力：オフ");
+        LatencyHistogram latency = mScanCapture.getDispatchLatency();
+        if (latency.getCount() > 0) {
+            addListView("読み取り→処理：" + latency
+                    + "\n読み取り時間：" + mScanCapture.getBurstDuration());
+        }
+    }
+
+    /**
+     * プリンタの文字コード設定
+     * Sets the charset text is sent to the connected printer in, and keeps it
+     * for the next start. Refused while no printer is connected.
+     *
+     * @param name The name of the charset, or empty for the default.
+     */
+    private void setPrinterCharset(String name) {
+        // The printer the next jobs are written to, not the last one scanned
+        String address = mChatService.getConnectedAddress();
+        if (address == null) {
+            addListView(getString(R.string.not_connected));
+            return;
+        }
+        Charset charset = null;
+        if (name.length() > 0) {
+            try {
+                charset = Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                addListView("文字コードが正しくありません：" + name);
+                return;
+            }
+        }
+        mChatService.setCharset(address, charset);
+        SharedPreferences.Editor editor = getActivity()
+                .getSharedPreferences(PREFS_CHARSETS, Context.MODE_PRIVATE).edit();
+        if (charset != null) {
+            editor.putString(address, charset.name());
+        } else {
+            editor.remove(address);
+        }
+        editor.apply();
+        addListView("文字コード：" + address + " " + mChatService.getCharset(address).name());
+    }
+
+    /**
+     * 連番印刷の枚数
+     *
+     * @return The number of labels, or -1 if the text is not a positive number.
+     */
+    private static int parseRun(String s) {
+        if (s.length() == 0 || s.length() > 9) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n > 0 ? n : -1;
+    }
+
+    /**
+     * 連番印刷開始
+     * Starts printing a serial run in jobs of up to 999 labels.
+     *
+     * @param total The number of labels.
+     * @param date  The date printed on the labels.
+     */
+    private void startRun(int total, String date) {
+        mRun = new SerialRun(total, RUN_WINDOW, RUN_MILLIS_PER_LABEL);
+        mRunDate = date;
+        addListView("連番印刷：" + total + "枚 (" + mRun.getJobCount() + "回に分けて送信)");
+        sendRun();
+    }
+
+    /**
+     * Sends the next jobs of the serial run, as many as its window allows,
+     * so the printer has the next job queued while it prints one.
+     */
+    private void sendRun() {
+        SerialRun run = mRun;
+        String total = Integer.toString(run.getTotal());
+        while (run.canSend()) {
+            SerialRun.Chunk chunk = run.next();
+            String qty = Integer.toString(chunk.count);
+            long jobId = 0;
+            String printer;
+            if (mGroup != null) {
+                printer = mChatService.choosePrinter(mGroup);
+                if (printer != null) {
+                    jobId = mChatService.submitJob(printer,
+                            buildLabelJob(mRunDate, chunk.first, qty, total, printer, null));
+                }
+            } else {
+                printer = mChatService.getConnectedAddress();
+                if (printer != null) {
+                    jobId = mChatService.submitJob(printer,
+                            buildLabelJob(mRunDate, chunk.first, qty, total, printer,
+                                    mConnectedDeviceName));
+                }
+            }
+            if (jobId != 0) {
+                run.sent(chunk, jobId);
+            } else {
+                run.failed(chunk);
+                addListView("連番印刷中断：" + chunk.first + "番から送信できません");
+                break;
+            }
+        }
+        finishRun();
+    }
+
+    /**
+     * Called when a job has been written to a printer. The next job is sent
+     * when this one is estimated to have printed, not now, so that the run
+     * is not all queued in the printer where #STOP cannot reach it.
+     *
+     * @param printer The address the job was written to.
+     * @param jobId   The id the job was written with.
+     */
+    private void onRunJobWritten(String printer, long jobId) {
+        long now = SystemClock.uptimeMillis();
+        long printedAt = mRun.onJobWritten(printer, jobId, now);
+        if (printedAt >= 0) {
+            addListView("連番印刷：" + mRun.getWritten() + "番まで送信済み");
+            mHandler.postDelayed(mRunPrinted, printedAt - now);
+        }
+        finishRun();
+    }
+
+    /**
+     * Counts the jobs of the serial run estimated to have printed, and sends
+     * the next ones.
+     */
+    private final Runnable mRunPrinted = new Runnable() {
+        @Override
+        public void run() {
+            if (mRun != null && mRun.updatePrinted(SystemClock.uptimeMillis())) {
+                addListView("連番印刷：" + mRun.getPrinted() + "/" + mRun.getTotal() + "枚 (推定)");
+                sendRun();
+            }
+        }
+    };
+
+    /**
+     * 連番印刷の中止
+     * Sends no more jobs of the serial run. Only the jobs not yet sent are
+     * dropped; the ones already sent, at most the window, still print.
+     */
+    private void stopRun() {
+        if (mRun == null) {
+            addListView("連番印刷していません");
+            return;
+        }
+        mRun.cancel();
+        addListView("連番印刷を中止します (" + mRun.getSent() + "番まで送信済み、以降は送信しません)");
+        finishRun();
+    }
+
+    private void finishRun() {
+        if (mRun == null || !mRun.isFinished()) {
+            return;
+        }
+        if (mRun.isCancelled()) {
+            addListView("連番印刷中止：" + mRun.getWritten() + "/" + mRun.getTotal() + "枚送信済み");
+        } else {
+            addListView("連番印刷終了：" + mRun.getTotal() + "枚");
+        }
+        mHandler.removeCallbacks(mRunPrinted);
+        mRun = null;
+        mRunDate = null;
+    }
+
+    /**
+     * プリンタ別ラベルテンプレート
+     * Loads the label templates of the printers from the labels directory in
+     * the background, and keeps reloading them as files are changed there.
+     *
+     * @param dir The labels directory.
+     */
+    private void startTemplates(File dir) {
+        final FragmentActivity activity = getActivity();
+        mTemplates = new TemplateRegistry(dir, Charset.forName("UTF-8"), mLabelTemplate);
+        mTemplates.setListener(new TemplateRegistry.Listener() {
+            @Override
+            public void onTemplateLoaded(final File file, final Exception error) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (error != null) {
+                            addListView("テンプレートエラー：" + file.getName() + " " + error.getMessage());
+                        } else {
+                            addListView("テンプレート更新：" + file.getName());
+                        }
+                    }
+                });
+            }
+        });
+        final TemplateRegistry templates = mTemplates;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                templates.start();
+            }
+        }, "TemplateLoad").start();
+    }
+
+    /**
+     * 品番マスタ取り込み
+     * Builds the part catalog from parts.csv in the app's external files
+     * directory, off the main thread, then switches to it.
+     */
+    private void importParts() {
+        final FragmentActivity activity = getActivity();
+        File dir = activity.getExternalFilesDir(null);
+        final File csv = new File(dir, PARTS_CSV);
+        if (dir == null || !csv.exists()) {
+            addListView("品番マスタ：" + csv.getPath() + " がありません");
+            return;
+        }
+        final File out = new File(activity.getFilesDir(), PARTS_CATALOG);
+        addListView("品番マスタ取り込み中…");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PartCatalog catalog = null;
+                try {
+                    FileInputStream in = new FileInputStream(csv);
+                    try {
+                        PartCatalog.importCsv(in, Charset.forName("UTF-8"), out);
+                    } finally {
+                        in.close();
+                    }
+                    catalog = PartCatalog.open(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "part import failed", e);
+                }
+                final PartCatalog result = catalog;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result == null) {
+                            addListView("品番マスタの取り込みに失敗しました");
+                            return;
+                        }
+                        mCatalog = result;
+                        addListView("品番マスタ：" + result.size() + "件 " + result.getFieldNames());
+                    }
+                });
+            }
+        }, "PartImport").start();
+    }
+
+    /**
+     * Times the scan classifier against the regular expressions it replaced,
+     * and the label template against building the script with a
+     * StringBuilder, off the main thread.
+     */
+    private void showBenchmarks() {
+        final FragmentActivity activity = getActivity();
+        final ScanClassifier classifier = mScanClassifier;
+        final LabelTemplate template = mLabelTemplate;
+        addListView("速度を測定中…");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final StringBuilder lines = new StringBuilder("読み取り判定：");
+                for (String line : ScanBenchmark.run(classifier, BENCH_ROUNDS)) {
+                    lines.append('\n').append(line);
+                }
+                if (template != null) {
+                    // Renders its own job, so the label screen's job is untouched
+                    lines.append("\nラベル作成：");
+                    for (String line : LabelBenchmark.run(template, BENCH_JOBS)) {
+                        lines.append('\n').append(line);
+                    }
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        addListView(lines.toString());
+                    }
+                });
+            }
+        }, "Benchmark").start();
+    }
+
+    /**
+     * Shows the queue depth and throughput of each printer of the group.
+     */
+    private void showGroupStatus() {
+        StringBuilder status = new StringBuilder();
+        for (String address : mGroup.getAddresses()) {
+            if (status.length() > 0) {
+                status.append('\n');
+            }
+            PrinterStats stats = mChatService.getStats(address);
+            status.append(address);
+            if (stats == null) {
+                status.append(" 未接続");
+            } else {
+                status.append(" 待ち:").append(stats.queueDepth)
+                        .append(" ").append(stats.bytesPerSecond).append("B/s");
+            }
+        }
+        addListView(status.toString());
+    }
+
     /**
      * Updates the status on the action bar.
      *
@@ -457,12 +1138,23 @@ public class BluetoothChatFragment extends Fragment {
                     }
                     break;
                 case Constants.MESSAGE_WRITE:
+                    // msg.arg1 is the number of bytes written; the payload itself
+                    // is not passed back because its buffer is reused
  //                   byte[] writeBuf = (byte[]) msg.obj;
                     // construct a string from the buffer
 //                    String writeMessage = new String(writeBuf);
 //                    writeMessage = writeMessage.replaceAll("\n","");
 //                  addListView(writeMessage);
                     break;
+                case Constants.MESSAGE_JOB_WRITTEN:
+                    addListView("印刷終了");
+                    if (mGroup != null) {
+                        showGroupStatus();
+                    }
+                    if (mRun != null) {
+                        onRunJobWritten((String) msg.obj, msg.getData().getLong(Constants.JOB_ID));
+                    }
+                    break;
                 case Constants.MESSAGE_READ:
 //                    byte[] readBuf = (byte[]) msg.obj;
                     // construct a string from the valid bytes in the buffer
@@ -531,7 +1223,7 @@ public class BluetoothChatFragment extends Fragment {
         String address = data.getExtras()
                 .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
         // Get the BluetoothDevice object
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        BluetoothDevice device = mDevices.getDevice(address);
         // Attempt to connect to the device
         mChatService.connect(device, secure);
     }
@@ -544,7 +1236,7 @@ public class BluetoothChatFragment extends Fragment {
     private void connectDeviceByAddress(String address,boolean secure) {
 //        DeviceListActivity.EXTRA_DEVICE_ADDRESS = "ANDES";
         // Get the BluetoothDevice object
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        BluetoothDevice device = mDevices.getDevice(address);
         // Attempt to connect to the device
         mChatService.connect(device, secure);
     }
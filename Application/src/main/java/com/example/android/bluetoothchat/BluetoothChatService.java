@@ -16,51 +16,120 @@
 
 package com.example.android.bluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 
 import com.example.android.common.logger.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ * <p>
+ * Several printers can stay connected at once, each with its own
+ * ConnectedThread and writer, kept in a pool keyed by address. The least
+ * recently used connection is closed when the pool is full. Writes without
+ * an address go to the current printer, the one last passed to
+ * {@link #connect(String, boolean)}, and {@link #getState()} describes it.
+ * <p>
+ * The sockets themselves come from a {@link Transport}, which is
+ * Bluetooth RFCOMM unless another one is given to the constructor.
+ * <p>
+ * In server mode ({@link #setMaxSessions(int)}) the AcceptThreads keep
+ * running and every accepted peer gets a session of its own, with a
+ * reader that passes what it receives to the UI Activity and a writer,
+ * alongside the printer connections.
+ * <p>
+ * The accept, connect, read and write loops all run on one bounded
+ * {@link ServiceExecutor}, which reuses its threads across connections.
  */
 public class BluetoothChatService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    // Unique UUID for this application
-//    private static final UUID MY_UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-//    private static final UUID MY_UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
-    // Unique UUID for SPP application
-    private static final UUID MY_UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private static final UUID MY_UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Transport mTransport;
+    private final ServiceCallback mCallback;
+    private final ServiceExecutor mExecutor = new ServiceExecutor(TAG, MAX_THREADS);
+    private final ConnectTimings mConnectTimings = new ConnectTimings();
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private int mAcceptFailures;    // accept loops failed in a row in server mode
+    // Connection attempts in progress, by address
+    private final Map<String, ConnectThread> mConnectThreads =
+            new HashMap<String, ConnectThread>();
+    // Open connections by address, least recently used first
+    private final LinkedHashMap<String, ConnectedThread> mConnections =
+            new LinkedHashMap<String, ConnectedThread>(8, 0.75f, true);
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private PrinterGroup mGroup;    // printers kept connected together, or null
+    // Inbound sessions of server mode, by address
+    private final Map<String, ConnectedThread> mSessions =
+            new LinkedHashMap<String, ConnectedThread>();
+    private volatile int mMaxSessions;  // 0 when not in server mode
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine(STATE_NONE);
+    private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OutboundQueue.OverflowPolicy mOverflowPolicy = OutboundQueue.OverflowPolicy.FAIL;
+    private FlushPolicy mFlushPolicy = FlushPolicy.DEFAULT;
+    private volatile PrintSpool mSpool;
+    private volatile String mAddress;    // the current printer
+    // Connection of the current printer, for writes that take no lock
+    private volatile ConnectedThread mCurrent;
+    private boolean mSecure;    // socket security type of the last connect()
+    private boolean mClientOnly;    // never listen for incoming connections
+    private long mHeartbeatMillis;  // 0 when idle links are not probed
+    private byte[] mHeartbeatProbe = DEFAULT_HEARTBEAT_PROBE;
+    private ReconnectPolicy mReconnectPolicy;
+    // Retries made so far, by address, since the last successful connection
+    private final Map<String, Integer> mReconnectAttempts = new HashMap<String, Integer>();
+    private final Random mRandom = new Random();
+    private final BufferPool mBufferPool = new BufferPool(DEFAULT_QUEUE_CAPACITY, 1024);
+    // Source of the ids of writes that are not spooled
+    private final AtomicLong mNextJobId = new AtomicLong();
+    // Charsets of the printers that don't use the default one, and their encoders
+    private final Map<String, Charset> mCharsets = new HashMap<String, Charset>();
+    private final Map<String, CommandEncoder> mEncoders = new HashMap<String, CommandEncoder>();
+    private volatile CommandEncoder mDefaultEncoder = new CommandEncoder(DEFAULT_CHARSET);
+
+    // Charset of printers that have not been given one
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    // Default number of writes that may wait for the writer thread
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    // Most threads of the service at once: two accept loops, a read and
+    // a write loop per connection, and up to two sockets per connect attempt
+    private static final int MAX_THREADS = 32;
+
+    // Default number of printer connections kept open at once
+    private static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+    // Restarts of a failed accept loop in server mode before giving up,
+    // each after a delay that grows by this much
+    private static final int MAX_ACCEPT_RETRIES = 5;
+    private static final long ACCEPT_RETRY_MILLIS = 1000;
+
+    // Empty line sent to an idle printer to check that the link is still up
+    private static final byte[] DEFAULT_HEARTBEAT_PROBE = {'\n'};
+
+    // Weight of the newest sample in the smoothed write latency
+    private static final double LATENCY_SMOOTHING = 0.2;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -69,218 +138,1124 @@ public class BluetoothChatService {
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
     /**
-     * Constructor. Prepares a new BluetoothChat session.
+     * Constructor. Prepares a new BluetoothChat session.
+     *
+     * @param context The UI Activity Context
+     * @param handler A Handler to send messages back to the UI Activity
+     */
+    public BluetoothChatService(Context context, Handler handler) {
+        this(handler, new RfcommTransport(DeviceRegistry.getInstance()));
+    }
+
+    /**
+     * Constructor. Prepares a new session over the given transport.
+     *
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport The transport that creates the sockets
+     */
+    public BluetoothChatService(Handler handler, Transport transport) {
+        this(new HandlerCallback(handler), transport);
+    }
+
+    /**
+     * Constructor. Prepares a new session that reports to a callback
+     * instead of a Handler, so it can run without android.os.
+     *
+     * @param callback  Receives the state changes, reads and written jobs
+     * @param transport The transport that creates the sockets
+     */
+    public BluetoothChatService(ServiceCallback callback, Transport transport) {
+        mTransport = transport;
+        mTransport.setConnectListener(mConnectTimings);
+        mCallback = callback;
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                // Give the new state to the callback so the UI Activity can update
+                mCallback.onStateChange(to);
+            }
+        });
+    }
+
+    /**
+     * Set the current state of the chat connection
+     *
+     * @param state An integer defining the current connection state
+     */
+    private void setState(int state) {
+        mStateMachine.transition(state);
+    }
+
+    /**
+     * Return the connection state of the current printer.
+     */
+    public int getState() {
+        return mStateMachine.get();
+    }
+
+    /**
+     * Register a callback for changes of the connection state, in addition
+     * to the MESSAGE_STATE_CHANGE sent to the UI Activity.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    /**
+     * Return the number of state changes that were refused because they
+     * are not valid from the state the service was in.
+     */
+    public int getRejectedTransitionCount() {
+        return mStateMachine.getRejectedCount();
+    }
+
+    /**
+     * Point the lock-free write path at the connection of the current
+     * printer. Called whenever the current printer or its connection changes.
+     */
+    private void updateCurrent() {
+        mCurrent = mAddress == null ? null : mConnections.get(mAddress);
+    }
+
+    /**
+     * Set whether the service only makes outgoing connections. In client-only
+     * mode no server sockets are opened, so there are no SDP records and no
+     * AcceptThreads; {@link #STATE_LISTEN} then just means idle.
+     *
+     * @param clientOnly true to never accept incoming connections
+     */
+    public synchronized void setClientOnly(boolean clientOnly) {
+        mClientOnly = clientOnly;
+        if (clientOnly) {
+            cancelAcceptThreads();
+        }
+    }
+
+    public synchronized boolean isClientOnly() {
+        return mClientOnly;
+    }
+
+    /**
+     * Turn server mode on or off. In server mode accepting continues while
+     * connections are open, and up to the given number of peers can be
+     * connected at once, each in a session with its own reader and writer.
+     * Accepted peers do not become the current printer. Server mode has no
+     * effect while the service is client-only.
+     *
+     * @param max Most sessions at once, or 0 to accept one peer as the
+     *            current device, as without server mode
+     */
+    public synchronized void setMaxSessions(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative: " + max);
+        }
+        mMaxSessions = max;
+        mExecutor.setMaxThreads(MAX_THREADS + 2 * max);
+        if (max > 0 && getState() != STATE_NONE && !mClientOnly) {
+            mAcceptFailures = 0;
+            startAcceptThreads();
+        }
+    }
+
+    /**
+     * Return the addresses of the peers connected in server mode.
+     */
+    public synchronized List<String> getSessionAddresses() {
+        return new ArrayList<String>(mSessions.keySet());
+    }
+
+    /**
+     * Return the traffic of each session of server mode, oldest first.
+     */
+    public List<SessionStats> getSessionStats() {
+        List<ConnectedThread> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<ConnectedThread>(mSessions.values());
+        }
+        List<SessionStats> stats = new ArrayList<SessionStats>(sessions.size());
+        for (ConnectedThread r : sessions) {
+            stats.add(r.getSessionStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Queue bytes for a peer connected in server mode.
+     *
+     * @param address The address of the peer
+     * @param out     The bytes to write
+     * @return true if the bytes were queued
+     */
+    public boolean writeSession(String address, byte[] out) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mSessions.get(address);
+        }
+        if (r == null) {
+            return false;
+        }
+        return r.write(mBufferPool.acquire().put(out), false, 0, jobId(0));
+    }
+
+    /**
+     * Set the size of the outgoing write queue. Takes effect on the next connection.
+     *
+     * @param capacity Maximum number of writes waiting for the writer thread
+     */
+    public synchronized void setQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mQueueCapacity = capacity;
+    }
+
+    /**
+     * Set what {@link #write(byte[])} and {@link #writeJob(byte[])} do when
+     * the outgoing queue is full.
+     *
+     * @param policy Block the caller, drop the write, or fail it
+     */
+    public synchronized void setOverflowPolicy(OutboundQueue.OverflowPolicy policy) {
+        mOverflowPolicy = policy;
+        for (ConnectedThread r : mConnections.values()) {
+            r.mmQueue.setPolicy(policy);
+        }
+    }
+
+    /**
+     * Set how many printer connections are kept open at once. When a new
+     * connection would exceed it, the least recently used one is closed.
+     *
+     * @param max Maximum number of open connections
+     */
+    public synchronized void setMaxConnections(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
+        mMaxConnections = max;
+        evictConnections();
+    }
+
+    /**
+     * Set the printer group jobs are being sent to. While it is set, the
+     * connection limit is raised to the size of the group and its members
+     * are not closed to make room, so every member can be chosen. Members
+     * that are not connected start connecting once, here; retries after
+     * that follow the {@link ReconnectPolicy}.
+     *
+     * @param group The active group, or null when printing on one printer
+     */
+    public synchronized void setGroup(PrinterGroup group) {
+        mGroup = group;
+        evictConnections();
+        if (group != null) {
+            for (String address : group.getAddresses()) {
+                connectInBackground(address);
+            }
+        }
+    }
+
+    /**
+     * Return the addresses of the open connections, least recently used first.
+     */
+    public synchronized List<String> getConnectedAddresses() {
+        return new ArrayList<String>(mConnections.keySet());
+    }
+
+    /**
+     * Return the load on the connection to a printer.
+     *
+     * @param address The address of the printer
+     * @return The statistics, or null if the printer is not connected
+     */
+    public PrinterStats getStats(String address) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mConnections.get(address);
+        }
+        return r == null ? null : r.getStats();
+    }
+
+    /**
+     * Return the number of threads the service has alive, busy or idle.
+     */
+    public int getLiveThreadCount() {
+        return mExecutor.getLiveThreadCount();
+    }
+
+    /**
+     * Return the names of the accept, connect, read and write loops that
+     * are running.
+     */
+    public List<String> getRunningTasks() {
+        return mExecutor.getRunningTasks();
+    }
+
+    /**
+     * Return the timings of the phases of outgoing connections, per address.
+     */
+    public ConnectTimings getConnectTimings() {
+        return mConnectTimings;
+    }
+
+    /**
+     * Return true if there is an open connection to the given address.
+     */
+    public synchronized boolean isConnected(String address) {
+        return mConnections.containsKey(address);
+    }
+
+    /**
+     * Return the address of the current printer if it is connected, or null.
+     * This is the printer that writes without an address go to.
+     */
+    public String getConnectedAddress() {
+        ConnectedThread r = mCurrent;
+        return r == null ? null : r.mmSocket.getRemoteAddress();
+    }
+
+    /**
+     * Set when buffered output is pushed to the socket. Takes effect on the
+     * next connection.
+     *
+     * @param policy The flush triggers, or null to write every buffer straight
+     *               through to the socket
+     */
+    public synchronized void setFlushPolicy(FlushPolicy policy) {
+        mFlushPolicy = policy;
+    }
+
+    /**
+     * Set the charset text is sent to printers in, unless
+     * {@link #setCharset(String, Charset)} gave a printer its own.
+     *
+     * @param charset The charset, UTF-8 by default
+     */
+    public synchronized void setDefaultCharset(Charset charset) {
+        mDefaultEncoder = new CommandEncoder(charset);
+        for (ConnectedThread r : mConnections.values()) {
+            r.mmEncoder = encoderFor(r.mmSocket.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Set the charset text is sent to one printer in, such as Shift_JIS.
+     *
+     * @param address The address of the printer
+     * @param charset The charset, or null to use the default one
+     */
+    public synchronized void setCharset(String address, Charset charset) {
+        if (charset != null) {
+            mCharsets.put(address, charset);
+        } else {
+            mCharsets.remove(address);
+        }
+        mEncoders.remove(address);
+        ConnectedThread r = mConnections.get(address);
+        if (r != null) {
+            r.mmEncoder = encoderFor(address);
+        }
+    }
+
+    /**
+     * Return the charset text is sent to a printer in.
+     */
+    public synchronized Charset getCharset(String address) {
+        return encoderFor(address).getCharset();
+    }
+
+    // Return the encoder of a printer, made once per charset change
+    private synchronized CommandEncoder encoderFor(String address) {
+        Charset charset = mCharsets.get(address);
+        if (charset == null) {
+            return mDefaultEncoder;
+        }
+        CommandEncoder encoder = mEncoders.get(address);
+        if (encoder == null) {
+            encoder = new CommandEncoder(charset);
+            mEncoders.put(address, encoder);
+        }
+        return encoder;
+    }
+
+    // Return the encoder of the printer write(PooledBuffer, boolean) writes to
+    private CommandEncoder currentEncoder() {
+        ConnectedThread r = mCurrent;
+        if (r != null) {
+            return r.mmEncoder;
+        }
+        String address = mAddress;
+        return address != null ? encoderFor(address) : mDefaultEncoder;
+    }
+
+    /**
+     * Set how often an idle link is probed. A probe that fails, or a
+     * connection closed by the printer, is noticed while idle and the
+     * printer is reconnected right away instead of on the next print job.
+     * Takes effect on the next connection.
+     *
+     * @param intervalMillis Idle time before a probe is sent, or 0 to not probe
+     * @param probe          Bytes the printer ignores, or null for an empty line
+     */
+    public synchronized void setHeartbeat(long intervalMillis, byte[] probe) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("interval must not be negative: "
+                    + intervalMillis);
+        }
+        mHeartbeatMillis = intervalMillis;
+        mHeartbeatProbe = probe != null ? probe.clone() : DEFAULT_HEARTBEAT_PROBE;
+    }
+
+    /**
+     * Set how failed and lost connections are retried.
+     *
+     * @param policy The backoff and socket race settings, or null to not
+     *               retry, apart from the one reconnect of a heartbeat
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Set the spool that keeps print jobs until they have been transmitted.
+     * Jobs written while connecting, or cut off by a lost connection, are
+     * sent again when the same printer is connected.
+     *
+     * @param spool The spool, or null to send jobs without spooling them
+     */
+    public void setSpool(PrintSpool spool) {
+        mSpool = spool;
+    }
+
+    /**
+     * Return the number of writes waiting for the writer thread of the
+     * current printer.
+     */
+    public int getQueueDepth() {
+        String address = mAddress;
+        return address == null ? 0 : getQueueDepth(address);
+    }
+
+    /**
+     * Return the number of writes waiting for the writer thread of a printer.
+     *
+     * @param address The address of the printer
+     */
+    public int getQueueDepth(String address) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mConnections.get(address);
+        }
+        return r == null ? 0 : r.mmQueue.size();
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptThread to begin a
+     * session in listening (server) mode, unless the service is client-only.
+     * Called by the Activity onResume()
+     */
+    public synchronized void start() {
+        Log.d(TAG, "start");
+
+        // Cancel any thread attempting to make a connection
+        cancelConnectThreads();
+
+        // Cancel any thread currently running a connection
+        cancelConnections();
+
+        mReconnectAttempts.clear();
+        updateCurrent();
+        listen();
+    }
+
+    /**
+     * Go back to listening mode and start the AcceptThreads if they are
+     * not running, unless the service is client-only.
+     */
+    private void listen() {
+        setState(STATE_LISTEN);
+        if (mClientOnly) {
+            return;
+        }
+        startAcceptThreads();
+    }
+
+    private void startAcceptThreads() {
+        // Start the thread to listen on a BluetoothServerSocket
+        if (mSecureAcceptThread == null) {
+            mSecureAcceptThread = startAcceptThread(true);
+        }
+        if (mInsecureAcceptThread == null) {
+            mInsecureAcceptThread = startAcceptThread(false);
+        }
+    }
+
+    /**
+     * Called by an accept loop that ended on an error instead of cancel().
+     * Clears its field so the next listen() starts it again; in server mode
+     * it is restarted after a delay, and the UI Activity is told once the
+     * retries are used up. Runs on the failed loop's thread.
+     */
+    private void acceptFailed(AcceptThread t) {
+        int attempt;
+        synchronized (this) {
+            if (mSecureAcceptThread == t) {
+                mSecureAcceptThread = null;
+            } else if (mInsecureAcceptThread == t) {
+                mInsecureAcceptThread = null;
+            } else {
+                // Cancelled or replaced meanwhile
+                return;
+            }
+            if (mMaxSessions == 0 || getState() == STATE_NONE) {
+                return;
+            }
+            attempt = ++mAcceptFailures;
+        }
+        if (attempt > MAX_ACCEPT_RETRIES) {
+            Log.e(TAG, "accept failed " + attempt + " times, server mode stopped");
+            mCallback.onToast("接続の受付を停止しました。サーバーモードを再度有効にして下さい。");
+            return;
+        }
+        try {
+            Thread.sleep(attempt * ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            return;
+        }
+        synchronized (this) {
+            if (mMaxSessions > 0 && getState() != STATE_NONE && !mClientOnly) {
+                Log.i(TAG, "restart accept, attempt " + attempt);
+                startAcceptThreads();
+            }
+        }
+    }
+
+    private AcceptThread startAcceptThread(boolean secure) {
+        AcceptThread t = new AcceptThread(secure);
+        if (mExecutor.execute("AcceptThread" + t.mSocketType, t)) {
+            return t;
+        }
+        t.cancel();
+        return null;
+    }
+
+    /**
+     * Run a ConnectThread and register it as the attempt for its address.
+     *
+     * @return false if there was no thread for it
+     */
+    private boolean startConnectThread(ConnectThread t) {
+        mConnectThreads.put(t.mmAddress, t);
+        if (mExecutor.execute("ConnectThread" + t.mSocketType, t)) {
+            return true;
+        }
+        mConnectThreads.remove(t.mmAddress);
+        t.cancel();
+        return false;
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     *
+     * @param device The BluetoothDevice to connect
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote address,
+     * and make it the current printer. Connections to other printers stay
+     * open. If the address is already connected it just becomes current.
+     *
+     * @param address The address to connect, in the format of the transport
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        Log.d(TAG, "connect to: " + address);
+        // Switch the lock-free write path before the current printer changes
+        ConnectedThread r = mConnections.get(address);
+        mCurrent = r;
+        mAddress = address;
+        mSecure = secure;
+        mReconnectAttempts.remove(address);
+
+        if (r != null) {
+            // Already open, switch to it without reconnecting
+            notifyDeviceName(r.mmSocket);
+            setState(STATE_CONNECTED);
+            return;
+        }
+
+        // Keep an attempt to this address that is already under way,
+        // such as a reconnect after the link dropped
+        ConnectThread t = mConnectThreads.get(address);
+        if (t != null && t.mmSecure == secure && !t.mmWaiting) {
+            setState(STATE_CONNECTING);
+            return;
+        }
+
+        // Cancel any thread attempting to make a connection to this address
+        if (t != null) {
+            mConnectThreads.remove(address);
+            t.cancel();
+        }
+
+        // Start the thread to connect with the given address
+        if (startConnectThread(new ConnectThread(address, secure, false, 0))) {
+            setState(STATE_CONNECTING);
+        } else {
+            notifyConnectionFailed();
+            listen();
+        }
+    }
+
+    /**
+     * Start connecting to a printer in the background, without making it
+     * the current printer, unless it is connected or already connecting.
+     */
+    private void connectInBackground(String address) {
+        if (mConnections.containsKey(address) || mConnectThreads.containsKey(address)) {
+            return;
+        }
+        Log.d(TAG, "connect in background to: " + address);
+        startConnectThread(new ConnectThread(address, mSecure, false, 0));
+    }
+
+    /**
+     * Start the next retry of a failed or lost connection, after the delay
+     * of the reconnect policy. Without a policy only a lost connection is
+     * retried, once and right away, if there is a heartbeat.
+     *
+     * @return false if the retries are used up
+     */
+    private boolean reconnect(String address) {
+        Integer attempts = mReconnectAttempts.get(address);
+        int attempt = attempts == null ? 0 : attempts;
+        ReconnectPolicy policy = mReconnectPolicy;
+        long delay;
+        boolean race;
+        if (policy != null) {
+            if (!policy.canRetry(attempt)) {
+                return false;
+            }
+            delay = policy.getDelayMillis(attempt, mRandom);
+            race = policy.isRaceSocketTypes();
+        } else {
+            if (attempt > 0 || mHeartbeatMillis == 0) {
+                return false;
+            }
+            delay = 0;
+            race = false;
+        }
+        mReconnectAttempts.put(address, attempt + 1);
+        Log.d(TAG, "reconnect " + (attempt + 1) + " to " + address + " in " + delay + "ms");
+
+        if (!startConnectThread(new ConnectThread(address, mSecure, race, delay))) {
+            return false;
+        }
+        if (address.equals(mAddress) && getState() != STATE_CONNECTING) {
+            setState(STATE_CONNECTING);
+        }
+        return true;
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a Bluetooth connection
+     *
+     * @param socket     The socket on which the connection was made
+     * @param socketType Secure or Insecure
+     */
+    public synchronized void connected(TransportSocket socket, final String socketType) {
+        Log.d(TAG, "connected, Socket Type:" + socketType);
+        String address = socket.getRemoteAddress();
+
+        mReconnectAttempts.remove(address);
+
+        // Cancel the thread that completed the connection
+        ConnectThread t = mConnectThreads.remove(address);
+        if (t != null) {
+            t.cancel();
+        }
+
+        // Cancel any thread currently running a connection to this address
+        ConnectedThread r = mConnections.remove(address);
+        if (r != null) {
+            r.cancel();
+        }
+
+        // Cancel the accept thread because we only want to connect to
+        // printers, unless other peers may still connect in server mode
+        if (mMaxSessions == 0) {
+            cancelAcceptThreads();
+        }
+
+        // Jobs spooled for this printer so far are sent again first; jobs
+        // written from now on go through the queue
+        List<PrintSpool.Job> replay = mSpool != null
+                ? mSpool.getPending(address) : Collections.<PrintSpool.Job>emptyList();
+
+        // Start the thread to manage the connection and perform transmissions
+        r = new ConnectedThread(socket, socketType, replay, false);
+        if (!mExecutor.execute("ConnectedThread", r)) {
+            r.cancel();
+            updateCurrent();
+            notifyConnectionFailed();
+            if (address.equals(mAddress)) {
+                listen();
+            }
+            return;
+        }
+        mConnections.put(address, r);
+        evictConnections();
+        updateCurrent();
+
+        if (address.equals(mAddress)) {
+            // Send the name of the connected device back to the UI Activity
+            notifyDeviceName(socket);
+            setState(STATE_CONNECTED);
+        }
+    }
+
+    /**
+     * Close the least recently used connections beyond the pool limit.
+     */
+    private void evictConnections() {
+        Iterator<Map.Entry<String, ConnectedThread>> it = mConnections.entrySet().iterator();
+        PrinterGroup group = mGroup;
+        int max = group != null ? Math.max(mMaxConnections, group.size()) : mMaxConnections;
+        List<String> members = group != null ? group.getAddresses()
+                : Collections.<String>emptyList();
+        while (mConnections.size() > max && it.hasNext()) {
+            Map.Entry<String, ConnectedThread> eldest = it.next();
+            if (eldest.getKey().equals(mAddress) || members.contains(eldest.getKey())) {
+                continue;
+            }
+            Log.d(TAG, "evict connection: " + eldest.getKey());
+            eldest.getValue().cancel();
+            it.remove();
+        }
+    }
+
+    private void cancelAcceptThreads() {
+        if (mSecureAcceptThread != null) {
+            mSecureAcceptThread.cancel();
+            mSecureAcceptThread = null;
+        }
+        if (mInsecureAcceptThread != null) {
+            mInsecureAcceptThread.cancel();
+            mInsecureAcceptThread = null;
+        }
+    }
+
+    private void cancelConnectThreads() {
+        for (ConnectThread t : mConnectThreads.values()) {
+            t.cancel();
+        }
+        mConnectThreads.clear();
+    }
+
+    private void cancelConnections() {
+        for (ConnectedThread r : mConnections.values()) {
+            r.cancel();
+        }
+        mConnections.clear();
+        for (ConnectedThread r : mSessions.values()) {
+            r.cancel();
+        }
+        mSessions.clear();
+    }
+
+    /**
+     * Start a session for a peer accepted in server mode, or turn it away
+     * if the maximum number of sessions is reached.
+     */
+    private void acceptSession(TransportSocket socket, String socketType) {
+        String address = socket.getRemoteAddress();
+        ConnectedThread r = mSessions.remove(address);
+        if (r != null) {
+            // The peer reconnected before its old session noticed
+            r.cancel();
+        }
+        if (mSessions.size() >= mMaxSessions) {
+            Log.w(TAG, "session limit " + mMaxSessions + " reached, refusing " + address);
+            closeQuietly(socket);
+            return;
+        }
+        r = new ConnectedThread(socket, socketType,
+                Collections.<PrintSpool.Job>emptyList(), true);
+        if (!mExecutor.execute("SessionThread", r)) {
+            r.cancel();
+            return;
+        }
+        mSessions.put(address, r);
+        Log.d(TAG, "session " + mSessions.size() + "/" + mMaxSessions + ": " + address);
+        notifyDeviceName(socket);
+    }
+
+    private void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close unwanted socket", e);
+        }
+    }
+
+    private void notifyDeviceName(TransportSocket socket) {
+        mCallback.onDeviceName(socket.getRemoteName());
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        Log.d(TAG, "stop");
+
+        cancelConnectThreads();
+
+        cancelConnections();
+
+        mReconnectAttempts.clear();
+        updateCurrent();
+
+        cancelAcceptThreads();
+        setState(STATE_NONE);
+    }
+
+    /**
+     * Queue a write on the ConnectedThread in an unsynchronized manner.
+     * Returns without waiting for the socket unless the queue is full and
+     * the overflow policy is {@link OutboundQueue.OverflowPolicy#BLOCK}.
+     * The bytes are copied, so the caller may reuse the array.
+     *
+     * @param out The bytes to write
+     * @return true if the bytes were queued
+     * @see ConnectedThread#write(PooledBuffer, boolean)
+     */
+    public boolean write(byte[] out) {
+        return write(mBufferPool.acquire().put(out), false) != 0;
+    }
+
+    /**
+     * Queue a line of text, encoded in the charset of the printer straight
+     * into a pooled buffer without allocating.
+     *
+     * @param out The text to write
+     * @return true if the text was queued
+     * @see #setCharset(String, Charset)
+     */
+    public boolean write(CharSequence out) {
+        return write(currentEncoder().encode(out, mBufferPool.acquire()), false) != 0;
+    }
+
+    /**
+     * Write a complete print job (JOB ... JOBE) to the ConnectedThread as a
+     * single contiguous buffer, so it goes out in one write instead of one
+     * write per command line.
      *
-     * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
+     * @param job The bytes of the whole job script
+     * @return true if the job was queued
      */
-    public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+    public boolean writeJob(byte[] job) {
+        return write(mBufferPool.acquire().put(job), true) != 0;
     }
 
     /**
-     * Set the current state of the chat connection
+     * Write a complete print job given as text, in the charset of the printer.
      *
-     * @param state An integer defining the current connection state
+     * @param job The whole job script
+     * @return true if the job was queued
+     * @see #writeJob(byte[])
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    public boolean writeJob(CharSequence job) {
+        return write(currentEncoder().encode(job, mBufferPool.acquire()), true) != 0;
     }
 
     /**
-     * Return the current connection state.
+     * Render a label job straight into a pooled buffer and write it.
+     *
+     * @param job The template and values of the job
+     * @return true if the job was queued
+     * @see #writeJob(byte[])
      */
-    public synchronized int getState() {
-        return mState;
+    public boolean writeJob(LabelTemplate.Job job) {
+        return write(job.render(mBufferPool.acquire(), currentEncoder()), true) != 0;
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Write a complete print job to a given printer. If the printer is
+     * not connected the job is only kept in the spool, if there is one.
+     *
+     * @param address The address of the printer
+     * @param job     The whole job script
+     * @return true if the job was queued or spooled
+     * @see #writeJob(byte[])
      */
-    public synchronized void start() {
-        Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        setState(STATE_LISTEN);
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
-        }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
-        }
+    public boolean writeJob(String address, CharSequence job) {
+        return write(address, encoderFor(address).encode(job, mBufferPool.acquire()), true) != 0;
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Write a complete print job to the least loaded printer of a group:
+     * the connected member with the fewest queued writes, and among those
+     * the one with the lowest recent write latency. If no member is
+     * connected the job is spooled for the first one, which is connected
+     * in the background.
      *
-     * @param device The BluetoothDevice to connect
-     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @param group The printers to choose from
+     * @param job   The whole job script
+     * @return The address of the printer chosen, or null if the job was
+     * not queued or spooled
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    public String writeJob(PrinterGroup group, CharSequence job) {
+        String address = choosePrinter(group);
+        if (address == null) {
+            return null;
         }
+        return write(address, encoderFor(address).encode(job, mBufferPool.acquire()), true) != 0
+                ? address : null;
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Render a label job and write it to a given printer.
+     *
+     * @param address The address of the printer
+     * @param job     The template and values of the job
+     * @return true if the job was queued or spooled
+     * @see #writeJob(String, CharSequence)
+     */
+    public boolean writeJob(String address, LabelTemplate.Job job) {
+        return submitJob(address, job) != 0;
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Render a label job and write it to a given printer, as
+     * {@link #writeJob(String, LabelTemplate.Job)} does, and return the id
+     * the job is reported with when it has been written, so the caller can
+     * tell its own jobs from others written to the same printer, such as
+     * spooled jobs sent again on reconnect.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @return The id of the job, or 0 if it was not queued or spooled
+     * @see ServiceCallback#onJobWritten(String, long, int, int)
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+    public long submitJob(String address, LabelTemplate.Job job) {
+        return write(address, job.render(mBufferPool.acquire(), encoderFor(address)), true);
+    }
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    /**
+     * Choose the printer of a group the next job should go to, as
+     * {@link #writeJob(PrinterGroup, CharSequence)} does, so the job can be
+     * made for that printer and written with {@link #writeJob(String, LabelTemplate.Job)}.
+     * Makes the group the active one, as {@link #setGroup(PrinterGroup)}
+     * does, the first time it is given.
+     *
+     * @return The address of the printer, or null if the group is empty
+     */
+    public synchronized String choosePrinter(PrinterGroup group) {
+        if (mGroup != group) {
+            setGroup(group);
         }
+        return selectPrinter(group);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Pick the connected member with the fewest jobs waiting, then the
+     * lowest write latency. Only when no member is connected does the job
+     * go to the member with the fewest jobs spooled, to wait for it there.
+     */
+    private String selectPrinter(PrinterGroup group) {
+        List<String> addresses = group.getAddresses();
+        String best = null;
+        int bestDepth = Integer.MAX_VALUE;
+        double bestLatency = Double.MAX_VALUE;
+        for (String address : addresses) {
+            ConnectedThread r = mConnections.get(address);
+            if (r == null) {
+                continue;
+            }
+            int depth = r.mmQueue.size();
+            double latency = r.getLatencyMillis();
+            if (depth < bestDepth || (depth == bestDepth && latency < bestLatency)) {
+                best = address;
+                bestDepth = depth;
+                bestLatency = latency;
+            }
         }
-
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (best != null) {
+            return best;
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        PrintSpool spool = mSpool;
+        for (String address : addresses) {
+            int depth = spool != null ? spool.getPendingCount(address) : 0;
+            if (depth < bestDepth) {
+                best = address;
+                bestDepth = depth;
+            }
         }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        setState(STATE_CONNECTED);
+        return best;
     }
 
     /**
-     * Stop all threads
+     * Return the id of a write: the spool id of a spooled job, which is
+     * what the job is replayed with, and else a negative id of its own.
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    private long jobId(long spoolId) {
+        return spoolId != 0 ? spoolId : -mNextJobId.incrementAndGet();
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * @return The id of the write, or 0 if it was not queued or spooled
+     */
+    private long write(PooledBuffer buffer, boolean job) {
+        // Fast path: the current printer is connected, no lock needed
+        ConnectedThread r = mCurrent;
+        if (r != null && getState() == STATE_CONNECTED) {
+            long spoolId = job ? spool(r.mmSocket.getRemoteAddress(), buffer, false) : 0;
+            long id = jobId(spoolId);
+            return r.write(buffer, job, spoolId, id) ? id : 0;
         }
-
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        String address = mAddress;
+        if (address == null) {
+            buffer.release();
+            return 0;
         }
-        setState(STATE_NONE);
+        return write(address, buffer, job);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return The id of the write, or 0 if it was not queued or spooled
      */
-    public void write(byte[] out) {
+    private long write(String address, PooledBuffer buffer, boolean job) {
+        long spoolId = 0;
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            r = mConnections.get(address);
+            if (job) {
+                // Nothing will send this job soon, so make it durable now
+                spoolId = spool(address, buffer, r == null);
+            }
+        }
+        if (r == null) {
+            buffer.release();
+            // A spooled job is sent when the printer is connected
+            return spoolId;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        long id = jobId(spoolId);
+        return r.write(buffer, job, spoolId, id) ? id : 0;
+    }
+
+    private long spool(String address, PooledBuffer buffer, boolean durable) {
+        PrintSpool spool = mSpool;
+        if (spool == null) {
+            return 0;
+        }
+        try {
+            return spool.add(address, buffer.array(), 0, buffer.length(), durable);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception during spool", e);
+            return 0;
+        }
+    }
+
+    private void markSpoolDone(long spoolId) {
+        PrintSpool spool = mSpool;
+        if (spool != null && spoolId != 0) {
+            try {
+                spool.markDone(spoolId);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during spool update", e);
+            }
+        }
+    }
+
+    private void syncSpool() {
+        PrintSpool spool = mSpool;
+        if (spool != null) {
+            try {
+                spool.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during spool sync", e);
+            }
+        }
+    }
+
+    /**
+     * Tell the UI Activity that a write was refused because the queue was full.
+     */
+    private void queueFull() {
+        mCallback.onToast("送信待ちが一杯です。しばらく待って再度印刷して下さい。");
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
+     *
+     * @param connectThread The thread whose attempt failed
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "接続に失敗しました。再度、接続して下さい。");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    private synchronized void connectionFailed(ConnectThread connectThread) {
+        String address = connectThread.mmAddress;
+        if (mConnectThreads.get(address) != connectThread) {
+            // Cancelled or replaced by a newer attempt
+            return;
+        }
+        mConnectThreads.remove(address);
+
+        // Try again if the reconnect policy allows it
+        if (reconnect(address)) {
+            return;
+        }
+        mReconnectAttempts.remove(address);
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+        notifyConnectionFailed();
+
+        // Go back to listening mode if it was the current printer
+        if (address.equals(mAddress)) {
+            listen();
+        }
+    }
+
+    /**
+     * Send a failure message back to the Activity.
+     */
+    private void notifyConnectionFailed() {
+        mCallback.onToast("接続に失敗しました。再度、接続して下さい。");
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     *
+     * @param connection The connection that was lost
      */
-    private void connectionLost() {
+    private synchronized void connectionLost(ConnectedThread connection) {
+        String address = connection.mmSocket.getRemoteAddress();
+        if (connection.mmInbound) {
+            // A session of server mode just ends; the peer reconnects itself
+            if (mSessions.get(address) == connection) {
+                mSessions.remove(address);
+                connection.cancel();
+                Log.d(TAG, "session closed: " + address);
+            }
+            return;
+        }
+        if (mConnections.get(address) != connection) {
+            // Already closed or replaced
+            return;
+        }
+        mConnections.remove(address);
+        connection.cancel();
+        updateCurrent();
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mCallback.onToast("Device connection was lost: " + address);
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+        // Reconnect now, so the next job does not wait for the connection
+        if (!reconnect(address) && address.equals(mAddress)) {
+            // Go back to listening mode if it was the current printer
+            listen();
+        }
     }
 
     /**
@@ -288,24 +1263,19 @@ public class BluetoothChatService {
      * like a server-side client. It runs until a connection is accepted
      * (or until cancelled).
      */
-    private class AcceptThread extends Thread {
+    private class AcceptThread implements Runnable {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final TransportServerSocket mmServerSocket;
         private String mSocketType;
+        private volatile boolean mmCancelled;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            TransportServerSocket tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransport.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
@@ -315,39 +1285,49 @@ public class BluetoothChatService {
         public void run() {
             Log.d(TAG, "Socket Type: " + mSocketType +
                     "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket = null;
+            TransportSocket socket = null;
+            if (mmServerSocket == null) {
+                acceptFailed(this);
+                return;
+            }
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket if we're not connected, or for as
+            // long as the thread runs in server mode
+            while (mMaxSessions > 0 || getState() != STATE_CONNECTED) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
+                    if (mmCancelled) {
+                        break;
+                    }
                     Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    acceptFailed(this);
                     break;
                 }
 
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
+                        mAcceptFailures = 0;
+                        if (mMaxSessions > 0 && getState() != STATE_NONE) {
+                            acceptSession(socket, mSocketType);
+                            continue;
+                        }
+                        switch (getState()) {
                             case STATE_LISTEN:
                             case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
+                                // Situation normal. Start the connected thread
+                                // and make the remote side the current device.
+                                mAddress = socket.getRemoteAddress();
+                                connected(socket, mSocketType);
                                 break;
                             case STATE_NONE:
                             case STATE_CONNECTED:
                                 // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
+                                closeQuietly(socket);
                                 break;
                         }
                     }
@@ -359,6 +1339,10 @@ public class BluetoothChatService {
 
         public void cancel() {
             Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            mmCancelled = true;
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -371,92 +1355,215 @@ public class BluetoothChatService {
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails. When racing, a second thread connects a socket of
+     * the other security type at the same time and the first socket to
+     * connect is kept.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectThread implements Runnable {
+        private final TransportSocket mmSocket;
+        private final TransportSocket mmOtherSocket;    // the other type when racing
+        private final String mmAddress;
+        private final boolean mmSecure;
+        private final long mmDelayMillis;
+        private volatile boolean mmWaiting;  // sleeping before a retry
+        private Thread mmThread;    // the pool thread running this attempt
+        private boolean mmCancelled;
+        private int mmFailures;
+        private long mmStartNanos;  // when the attempt began, after the retry delay
+        private final long mmCreateNanos;  // recorded in run(), outside the service lock
         private String mSocketType;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address, boolean secure, boolean race, long delayMillis) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmDelayMillis = delayMillis;
+            mmWaiting = delayMillis > 0;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a socket for a connection with the given address
+            long start = System.nanoTime();
+            mmSocket = createSocket(secure);
+            mmOtherSocket = race ? createSocket(!secure) : null;
+            mmCreateNanos = System.nanoTime() - start;
+        }
+
+        private TransportSocket createSocket(boolean secure) {
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
+                return mTransport.createSocket(mmAddress, secure);
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+                Log.e(TAG, "Socket Type: " + (secure ? "Secure" : "Insecure")
+                        + "create() failed", e);
+                return null;
             }
-            mmSocket = tmp;
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+            synchronized (this) {
+                if (mmCancelled) {
+                    return;
+                }
+                mmThread = Thread.currentThread();
+            }
+            mConnectTimings.record(mmAddress, ConnectTimings.Phase.CREATE_SOCKET, mmCreateNanos);
+            try {
+                if (mmDelayMillis > 0) {
+                    try {
+                        Thread.sleep(mmDelayMillis);
+                    } catch (InterruptedException e) {
+                        // Cancelled while waiting for the retry
+                        return;
+                    }
+                    mmWaiting = false;
+                }
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+                // Always cancel discovery because it will slow down a connection
+                mmStartNanos = System.nanoTime();
+                mTransport.prepareConnect();
+                mConnectTimings.record(mmAddress, ConnectTimings.Phase.CANCEL_DISCOVERY,
+                        System.nanoTime() - mmStartNanos);
+
+                if (mmOtherSocket != null) {
+                    final String otherType = mmSecure ? "Insecure" : "Secure";
+                    boolean started = mExecutor.execute("ConnectThread" + otherType,
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    connect(mmOtherSocket, otherType);
+                                }
+                            });
+                    if (!started) {
+                        close(mmOtherSocket, otherType);
+                        onFailure();
+                    }
+                }
+                connect(mmSocket, mSocketType);
+            } finally {
+                synchronized (this) {
+                    // Do not interrupt whatever the pool thread runs next
+                    mmThread = null;
+                }
+            }
+        }
 
+        private void connect(TransportSocket socket, String socketType) {
             // Make a connection to the BluetoothSocket
+            long connectedNanos;
             try {
+                if (socket == null) {
+                    throw new IOException("no socket");
+                }
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                mmSocket.connect();
+                socket.connect();
+                connectedNanos = System.nanoTime();
             } catch (IOException e) {
                 // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
-                }
-                connectionFailed();
+                close(socket, socketType);
+                onFailure();
                 return;
             }
 
-            // Reset the ConnectThread because we're done
             synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+                if (mConnectThreads.get(mmAddress) != this) {
+                    // This attempt was cancelled, or the other socket won the race
+                    close(socket, socketType);
+                    return;
+                }
+                // Reset the ConnectThread because we're done
+                mConnectThreads.remove(mmAddress);
+
+                // The socket that lost the race is no longer needed
+                if (mmOtherSocket != null) {
+                    close(socket == mmSocket ? mmOtherSocket : mmSocket, socketType);
+                }
+
+                // Start the connected thread
+                connected(socket, socketType);
+                long end = System.nanoTime();
+                // LOOKUP and CONNECT are recorded by the transport
+                mConnectTimings.record(mmAddress, ConnectTimings.Phase.HANDOFF,
+                        end - connectedNanos);
+                mConnectTimings.record(mmAddress, ConnectTimings.Phase.TOTAL,
+                        end - mmStartNanos);
             }
+        }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+        private void onFailure() {
+            synchronized (this) {
+                // When racing, only fail once both sockets have failed
+                if (++mmFailures < (mmOtherSocket != null ? 2 : 1)) {
+                    return;
+                }
+            }
+            connectionFailed(this);
         }
 
-        public void cancel() {
+        private void close(TransportSocket socket, String socketType) {
+            if (socket == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of connect " + socketType + " socket failed", e);
+            }
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                mmCancelled = true;
+                if (mmThread != null) {
+                    mmThread.interrupt();
+                }
             }
+            close(mmSocket, mSocketType);
+            close(mmOtherSocket, mSocketType);
         }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions, and owns the WriterThread
+     * that performs the outgoing ones.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread implements Runnable {
+        private final TransportSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        private final OutputStream mmSocketOutStream;
+        private final JobBufferedOutputStream mmJobStream;
+        private final OutboundQueue mmQueue;
+        private final WriterThread mmWriter;
+        private final List<PrintSpool.Job> mmReplay;
+        private final long mmHeartbeatMillis;
+        private final byte[] mmHeartbeatProbe;
+        private final boolean mmInbound;    // a session of server mode
+        private volatile CommandEncoder mmEncoder;  // text in the printer's charset
+        private final long mmStartNanos = System.nanoTime();
+        private boolean mmWritten;  // set by the WriterThread after the first job
+        // When the first job was waiting: the handoff if jobs were replayed
+        // at once, else when one was first queued; 0 until then
+        private volatile long mmFirstQueuedNanos;
+        private long mmBytesRead;
+        private long mmBytesWritten;
+
+        // Load statistics, updated by the WriterThread
+        private long mmJobs;
+        private long mmBytes;
+        private long mmWriteNanos;
+        private double mmLatencyMillis;
+
+        public ConnectedThread(TransportSocket socket, String socketType,
+                               List<PrintSpool.Job> replay, boolean inbound) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
+            mmInbound = inbound;
+            mmEncoder = encoderFor(socket.getRemoteAddress());
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the socket input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -465,16 +1572,38 @@ public class BluetoothChatService {
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmSocketOutStream = tmpOut;
+            // Buffer the output unless the writes should go straight through
+            if (tmpOut != null && mFlushPolicy != null) {
+                mmJobStream = new JobBufferedOutputStream(tmpOut, mFlushPolicy);
+                mmOutStream = mmJobStream;
+            } else {
+                mmJobStream = null;
+                mmOutStream = tmpOut;
+            }
+            mmQueue = new OutboundQueue(mQueueCapacity, mOverflowPolicy);
+            mmReplay = replay;
+            if (!replay.isEmpty()) {
+                mmFirstQueuedNanos = System.nanoTime();
+            }
+            // Peers of server mode are not printers and are not probed
+            mmHeartbeatMillis = inbound ? 0 : mHeartbeatMillis;
+            mmHeartbeatProbe = mHeartbeatProbe;
+            mmWriter = new WriterThread(this);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            //相手からの受信は受けない
-            if (true) {
+            if (!mExecutor.execute("WriterThread", mmWriter)) {
+                connectionLost(this);
+                return;
+            }
+            if (mmInStream == null) {
                 return;
             }
-            byte[] buffer = new byte[1024];
+            //相手からの受信は受けないが、切断を早く知るために読み続ける
+            //(サーバーモードのセッションは受信データを画面に渡す)
+            byte[] buffer = new byte[mmInbound ? 1024 : 64];
             int bytes;
 
             // Keep listening to the InputStream while connected
@@ -482,42 +1611,282 @@ public class BluetoothChatService {
                 try {
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    if (bytes < 0) {
+                        throw new IOException("closed by the remote device");
+                    }
+                    recordRead(bytes);
+                    if (mmInbound) {
+                        // Send a copy of the bytes to the UI Activity; the
+                        // buffer is reused by the next read
+                        byte[] copy = new byte[bytes];
+                        System.arraycopy(buffer, 0, copy, 0, bytes);
+                        mCallback.onRead(mmSocket.getRemoteAddress(), copy);
+                    }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
+                    // A cancelled connection closes its queue before its socket
+                    if (!mmQueue.isClosed()) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a write to the connected OutStream. The buffer is released
+         * once it has been written, or right away if it cannot be queued.
+         *
+         * @param buffer  The bytes to write
+         * @param job     true if the buffer is a whole print job, which the
+         *                WriterThread reports back to the UI Activity as one event
+         * @param spoolId The id of the job in the spool, or 0
+         * @param jobId   The id the job is reported with once written
+         * @return true if the bytes were queued
+         */
+        public boolean write(PooledBuffer buffer, boolean job, long spoolId, long jobId) {
+            if (job && mmFirstQueuedNanos == 0) {
+                mmFirstQueuedNanos = System.nanoTime();
+            }
+            if (mmQueue.offer(buffer, job, spoolId, jobId)) {
+                return true;
+            }
+            buffer.release();
+            if (mmQueue.isClosed()) {
+                // The connection closed under a lock-free write; a spooled
+                // job is sent again once the printer is reconnected
+                Log.w(TAG, "write to closed connection");
+                return spoolId != 0;
+            }
+            // The caller is told the job failed, so it must not be sent later
+            markSpoolDone(spoolId);
+            if (mmQueue.getPolicy() == OutboundQueue.OverflowPolicy.FAIL) {
+                queueFull();
+            } else {
+                Log.w(TAG, "write dropped, queue full: " + mmQueue.size());
+            }
+            return false;
+        }
+
+        /**
+         * Record one job written by the WriterThread.
+         *
+         * @param bytes The size of the job
+         * @param nanos The time it took to write the job
+         */
+        synchronized void recordJob(int bytes, long nanos) {
+            mmJobs++;
+            mmBytes += bytes;
+            mmWriteNanos += nanos;
+            double millis = nanos / 1000000.0;
+            // Smooth the latency so one slow write does not dominate
+            mmLatencyMillis = mmJobs == 1 ? millis
+                    : mmLatencyMillis + LATENCY_SMOOTHING * (millis - mmLatencyMillis);
+        }
+
+        synchronized void recordRead(int bytes) {
+            mmBytesRead += bytes;
+        }
+
+        synchronized void recordWrite(int bytes) {
+            mmBytesWritten += bytes;
+        }
+
+        synchronized SessionStats getSessionStats() {
+            return new SessionStats(mmSocket.getRemoteAddress(),
+                    (System.nanoTime() - mmStartNanos) / 1000000L, mmBytesRead, mmBytesWritten);
+        }
+
+        synchronized double getLatencyMillis() {
+            return mmLatencyMillis;
+        }
+
+        synchronized PrinterStats getStats() {
+            long bytesPerSecond = mmWriteNanos == 0 ? 0 : mmBytes * 1000000000L / mmWriteNanos;
+            return new PrinterStats(mmSocket.getRemoteAddress(), mmQueue.size(), mmJobs, mmBytes,
+                    mmLatencyMillis, bytesPerSecond);
+        }
+
+        public void cancel() {
+            mmQueue.close();
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread drains the outgoing queue of a ConnectedThread, so the
+     * blocking socket write never runs on the caller's thread.
+     */
+    private class WriterThread implements Runnable {
+        private final ConnectedThread mmConnection;
+        private long mmLastWriteNanos = System.nanoTime();
+
+        public WriterThread(ConnectedThread connection) {
+            mmConnection = connection;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mWriterThread");
+            // Send the jobs left in the spool by an earlier connection first
+            for (PrintSpool.Job job : mmConnection.mmReplay) {
+                Log.i(TAG, "replay spooled job " + job.id);
+                if (!write(job.data, job.data.length, true, job.id, job.id)) {
+                    return;
+                }
+            }
+
+            OutboundQueue.Entry entry = new OutboundQueue.Entry();
+            OutboundQueue queue = mmConnection.mmQueue;
+            JobBufferedOutputStream out = mmConnection.mmJobStream;
+            try {
+                while (true) {
+                    if (queue.size() == 0) {
+                        // Idle: make the spool's done records durable in one go
+                        syncSpool();
+                    }
+                    // Wake up in time to flush bytes that reached the linger
+                    // time, or to probe the link when it has been idle
+                    long timeout = out == null ? -1 : out.getLingerRemainingMillis();
+                    long heartbeat = getHeartbeatRemainingMillis();
+                    if (heartbeat >= 0 && (timeout < 0 || heartbeat < timeout)) {
+                        timeout = heartbeat;
+                    }
+                    if (!queue.poll(entry, timeout)) {
+                        if (queue.isClosed()) {
+                            break;
+                        }
+                        if (out != null) {
+                            flushLingered(out);
+                        }
+                        if (getHeartbeatRemainingMillis() == 0 && !sendHeartbeat()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    boolean ok = write(entry.buffer.array(), entry.buffer.length(),
+                            entry.job, entry.spoolId, entry.jobId);
+                    entry.buffer.release();
+                    entry.buffer = null;
+                    if (!ok) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "WriterThread interrupted");
+            }
+            Log.i(TAG, "END mWriterThread");
+        }
+
+        /**
+         * Write one buffer to the socket.
          *
-         * @param buffer The bytes to write
+         * @return false if the connection failed
          */
-        public void write(byte[] buffer) {
+        private boolean write(byte[] buffer, int length, boolean job, long spoolId,
+                              long jobId) {
             try {
-                mmOutStream.write(buffer);
+                if (spoolId != 0) {
+                    // The job must be on disk before any of it is transmitted
+                    syncSpool();
+                }
+                long start = System.nanoTime();
+                mmLastWriteNanos = start;
+                mmConnection.mmOutStream.write(buffer, 0, length);
+                mmConnection.recordWrite(length);
+                if (job && !mmConnection.mmWritten) {
+                    mmConnection.mmWritten = true;
+                    if (!mmConnection.mmInbound) {
+                        // Not the time the printer sat idle before the first job
+                        mConnectTimings.record(mmConnection.mmSocket.getRemoteAddress(),
+                                ConnectTimings.Phase.FIRST_WRITE,
+                                System.nanoTime() - mmConnection.mmFirstQueuedNanos);
+                    }
+                }
+                // The buffer goes back to the pool, so only its length is
+                // reported to the UI Activity
+                if (job) {
+                    JobBufferedOutputStream out = mmConnection.mmJobStream;
+                    int flushes = 1;
+                    if (out == null) {
+                        mmConnection.mmOutStream.flush();
+                    } else {
+                        // The stream flushed on its own according to the policy
+                        flushes = out.getLastJobFlushCount();
+                        Log.d(TAG, "job " + out.getLastJobBytes() + " bytes in " + flushes
+                                + " flushes, " + (out.getLastJobBytes() / Math.max(1, flushes))
+                                + " bytes/flush");
+                        if (spoolId != 0) {
+                            // Only mark the job done once all of it is out
+                            out.flush();
+                        }
+                    }
+                    mmConnection.recordJob(length, System.nanoTime() - start);
+                    markSpoolDone(spoolId);
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+                    // Tell the UI Activity that the whole job has been sent, and to which printer
+                    mCallback.onJobWritten(mmConnection.mmSocket.getRemoteAddress(), jobId,
+                            length, flushes);
+                } else {
+                    mCallback.onWrite(length);
+                }
+                return true;
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
+                // A cancelled connection closes its queue before its socket
+                if (!mmConnection.mmQueue.isClosed()) {
+                    connectionLost(mmConnection);
+                }
+                return false;
             }
         }
 
-        public void cancel() {
+        /**
+         * Return how long until the link should be probed, 0 if it is due,
+         * or -1 if there is no heartbeat.
+         */
+        private long getHeartbeatRemainingMillis() {
+            long interval = mmConnection.mmHeartbeatMillis;
+            if (interval == 0) {
+                return -1;
+            }
+            long idle = (System.nanoTime() - mmLastWriteNanos) / 1000000L;
+            return Math.max(0, interval - idle);
+        }
+
+        /**
+         * Send the heartbeat probe straight to the socket, after anything
+         * still buffered, so it is not counted as part of a job.
+         *
+         * @return false if the connection failed
+         */
+        private boolean sendHeartbeat() {
+            mmLastWriteNanos = System.nanoTime();
             try {
-                mmSocket.close();
+                if (mmConnection.mmJobStream != null) {
+                    mmConnection.mmJobStream.flush();
+                }
+                OutputStream socketOut = mmConnection.mmSocketOutStream;
+                socketOut.write(mmConnection.mmHeartbeatProbe);
+                socketOut.flush();
+                return true;
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "Exception during heartbeat", e);
+                if (!mmConnection.mmQueue.isClosed()) {
+                    connectionLost(mmConnection);
+                }
+                return false;
+            }
+        }
+
+        private void flushLingered(JobBufferedOutputStream out) {
+            try {
+                out.flushIfLingered();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during flush", e);
             }
         }
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A small pool of reusable {@link PooledBuffer}s for the outgoing write path.
+ * Buffers are taken with {@link #acquire()} and must be handed back with
+ * {@link PooledBuffer#release()} once the bytes have been written, so that
+ * steady-state printing does not allocate per command line.
+ */
+public class BufferPool {
+
+    // Buffers that grew beyond this are not kept in the pool
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private final PooledBuffer[] mFree;
+    private final int mBufferSize;
+    private int mFreeCount;
+    private int mAllocated;
+
+    /**
+     * @param maxPooled  Maximum number of idle buffers kept for reuse
+     * @param bufferSize Initial capacity of each buffer in bytes
+     */
+    public BufferPool(int maxPooled, int bufferSize) {
+        mFree = new PooledBuffer[maxPooled];
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Take an empty buffer from the pool, allocating one only if none is idle.
+     */
+    public synchronized PooledBuffer acquire() {
+        PooledBuffer buffer;
+        if (mFreeCount > 0) {
+            buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+        } else {
+            buffer = new PooledBuffer(this, mBufferSize);
+            mAllocated++;
+        }
+        buffer.mPooled = false;
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void recycle(PooledBuffer buffer) {
+        if (buffer.mPooled) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        buffer.mPooled = true;
+        if (mFreeCount < mFree.length && buffer.capacity() <= MAX_RETAINED_SIZE) {
+            mFree[mFreeCount++] = buffer;
+        }
+    }
+
+    /**
+     * Return the number of buffers this pool has ever allocated.
+     */
+    public synchronized int getAllocatedCount() {
+        return mAllocated;
+    }
+
+    /**
+     * Return the number of idle buffers ready for reuse.
+     */
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Encodes command text in the charset of one printer straight into a
+ * {@link PooledBuffer}, without allocating.
+ * <p>
+ * Command lines are ASCII, and in charsets that keep ASCII as it is, such
+ * as UTF-8 and Shift_JIS, they are copied a char to a byte. Other text,
+ * such as Japanese part names, goes through a {@link CharsetEncoder} kept
+ * by this object, in chunks through buffers allocated once. Characters
+ * the charset can't encode are replaced, as {@link String#getBytes} does.
+ * <p>
+ * Thread safe; callers encoding for the same printer take turns.
+ */
+public final class CommandEncoder {
+
+    // Characters encoded per pass of the slow path
+    private static final int CHUNK = 256;
+
+    private final Charset mCharset;
+    private final CharsetEncoder mEncoder;
+    private final boolean mAsciiCompatible;
+    private final CharBuffer mChars = CharBuffer.allocate(CHUNK);
+    private final ByteBuffer mBytes;
+
+    public CommandEncoder(Charset charset) {
+        mCharset = charset;
+        mEncoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mAsciiCompatible = isAsciiCompatible(charset);
+        mBytes = ByteBuffer.allocate((int) Math.ceil(CHUNK * mEncoder.maxBytesPerChar()));
+    }
+
+    public Charset getCharset() {
+        return mCharset;
+    }
+
+    /**
+     * Return true if ASCII text needs no encoding in this charset.
+     */
+    public boolean isAsciiCompatible() {
+        return mAsciiCompatible;
+    }
+
+    /**
+     * Append the encoded text to a buffer.
+     *
+     * @return The buffer
+     */
+    public synchronized PooledBuffer encode(CharSequence s, PooledBuffer out) {
+        int n = s.length();
+        int i = 0;
+        if (mAsciiCompatible) {
+            // Fast path: copy ASCII up to the first other character
+            out.ensureCapacity(out.length() + n);
+            byte[] data = out.array();
+            int len = out.length();
+            while (i < n) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                data[len++] = (byte) c;
+                i++;
+            }
+            out.setLength(len);
+            if (i == n) {
+                return out;
+            }
+        }
+        encodeSlow(s, i, n, out);
+        return out;
+    }
+
+    private void encodeSlow(CharSequence s, int i, int n, PooledBuffer out) {
+        CharsetEncoder encoder = mEncoder;
+        CharBuffer chars = mChars;
+        ByteBuffer bytes = mBytes;
+        encoder.reset();
+        chars.clear();
+        bytes.clear();
+        boolean end;
+        do {
+            while (chars.hasRemaining() && i < n) {
+                chars.put(s.charAt(i++));
+            }
+            end = i == n;
+            chars.flip();
+            // A high surrogate at the end of a chunk waits for the next one
+            while (encoder.encode(chars, bytes, end).isOverflow()) {
+                drain(bytes, out);
+            }
+            chars.compact();
+        } while (!end);
+        while (encoder.flush(bytes).isOverflow()) {
+            drain(bytes, out);
+        }
+        drain(bytes, out);
+    }
+
+    private static void drain(ByteBuffer bytes, PooledBuffer out) {
+        out.put(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[0x80];
+        char[] chars = new char[0x80];
+        for (int c = 0; c < 0x80; c++) {
+            ascii[c] = (byte) c;
+            chars[c] = (char) c;
+        }
+        return Arrays.equals(ascii, new String(chars).getBytes(charset));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of outgoing connections goes, kept per device address
+ * as one {@link LatencyHistogram} per phase of the connect path.
+ */
+public class ConnectTimings implements Transport.ConnectListener {
+
+    /**
+     * The phases of a connection, in the order they happen.
+     */
+    public enum Phase {
+        /** Creating the transport socket(s), which does no lookup or I/O. */
+        CREATE_SOCKET,
+        /** Cancelling Bluetooth discovery before connecting. */
+        CANCEL_DISCOVERY,
+        /**
+         * Finding where to connect, inside the transport connect: creating
+         * the RFCOMM socket for the cached channel or the service record,
+         * or resolving the TCP host. Recorded for each socket tried.
+         */
+        LOOKUP,
+        /**
+         * The blocking connect of the socket that connected; for an RFCOMM
+         * socket on the service record the SDP query runs within it.
+         */
+        CONNECT,
+        /** From the socket connecting to its ConnectedThread running. */
+        HANDOFF,
+        /**
+         * From the first job waiting to it being written: from the handoff
+         * if spooled jobs were waiting for the connection, else from the
+         * first job being queued.
+         */
+        FIRST_WRITE,
+        /** From the attempt starting, after any retry delay, to the handoff. */
+        TOTAL
+    }
+
+    private final Map<String, EnumMap<Phase, LatencyHistogram>> mByAddress =
+            new HashMap<String, EnumMap<Phase, LatencyHistogram>>();
+
+    @Override
+    public synchronized void record(String address, Phase phase, long nanos) {
+        EnumMap<Phase, LatencyHistogram> phases = mByAddress.get(address);
+        if (phases == null) {
+            phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+            mByAddress.put(address, phases);
+        }
+        LatencyHistogram histogram = phases.get(phase);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            phases.put(phase, histogram);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Return the addresses that have timings.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mByAddress.keySet());
+    }
+
+    /**
+     * Return a snapshot of one phase for one address, or null if there
+     * is no timing of it yet.
+     */
+    public synchronized LatencyHistogram getHistogram(String address, Phase phase) {
+        EnumMap<Phase, LatencyHistogram> phases = mByAddress.get(address);
+        LatencyHistogram histogram = phases == null ? null : phases.get(phase);
+        return histogram == null ? null : histogram.snapshot();
+    }
+
+    /**
+     * Return one line per phase with timings for the address.
+     */
+    public synchronized List<String> describe(String address) {
+        List<String> lines = new ArrayList<String>();
+        EnumMap<Phase, LatencyHistogram> phases = mByAddress.get(address);
+        if (phases != null) {
+            for (Map.Entry<Phase, LatencyHistogram> e : phases.entrySet()) {
+                lines.add(e.getKey() + " " + e.getValue());
+            }
+        }
+        return lines;
+    }
+
+    public synchronized void clear() {
+        mByAddress.clear();
+    }
+}
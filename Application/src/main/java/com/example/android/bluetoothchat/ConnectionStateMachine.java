@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The connection state of {@link BluetoothChatService}, changed with
+ * compare-and-set instead of under a lock. Only the transitions in the
+ * table below are made; any other is refused and counted, so a thread
+ * acting on a stale view of the connection shows up in the counters
+ * instead of silently overwriting the state.
+ * <pre>
+ *   from \ to    NONE  LISTEN  CONNECTING  CONNECTED
+ *   NONE          -     yes      yes          no
+ *   LISTEN       yes     -       yes          yes
+ *   CONNECTING   yes    yes      yes          yes
+ *   CONNECTED    yes    yes      yes          yes
+ * </pre>
+ * CONNECTING to CONNECTING (a new target) and CONNECTED to CONNECTED
+ * (a switch to another open printer) are real transitions and notify
+ * the listeners. Setting NONE or LISTEN again is a no-op.
+ */
+public class ConnectionStateMachine {
+    // Debugging
+    private static final String TAG = "ConnectionStateMachine";
+
+    private static final int STATE_COUNT = 4;
+
+    // Allowed transitions, indexed by the STATE_ constants of BluetoothChatService
+    private static final boolean[][] TRANSITIONS = {
+            //                NONE   LISTEN CONNECTING CONNECTED
+            /* NONE */       {false, true,  true,      false},
+            /* LISTEN */     {true,  false, true,      true},
+            /* CONNECTING */ {true,  true,  true,      true},
+            /* CONNECTED */  {true,  true,  true,      true},
+    };
+
+    /**
+     * Callback for state changes. Called on the thread that made the change.
+     */
+    public interface Listener {
+        void onStateChanged(int from, int to);
+    }
+
+    private final AtomicInteger mState;
+    private final AtomicIntegerArray mRejected = new AtomicIntegerArray(STATE_COUNT * STATE_COUNT);
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    public ConnectionStateMachine(int initialState) {
+        mState = new AtomicInteger(checkState(initialState));
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move to a new state from whatever the current one is.
+     *
+     * @return true if the state changed
+     */
+    public boolean transition(int to) {
+        checkState(to);
+        while (true) {
+            int from = mState.get();
+            if (!isAllowed(from, to)) {
+                return false;
+            }
+            if (mState.compareAndSet(from, to)) {
+                notifyListeners(from, to);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move to a new state only if the current state is the expected one.
+     *
+     * @return true if the state changed
+     */
+    public boolean transition(int from, int to) {
+        checkState(to);
+        if (!isAllowed(from, to)) {
+            return false;
+        }
+        if (mState.compareAndSet(from, to)) {
+            notifyListeners(from, to);
+            return true;
+        }
+        return false;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Return the number of refused transitions from one state to another.
+     */
+    public int getRejectedCount(int from, int to) {
+        return mRejected.get(checkState(from) * STATE_COUNT + checkState(to));
+    }
+
+    /**
+     * Return the number of refused transitions of all kinds.
+     */
+    public int getRejectedCount() {
+        int count = 0;
+        for (int i = 0; i < mRejected.length(); i++) {
+            count += mRejected.get(i);
+        }
+        return count;
+    }
+
+    private boolean isAllowed(int from, int to) {
+        if (TRANSITIONS[from][to]) {
+            return true;
+        }
+        if (from != to) {
+            int rejected = mRejected.incrementAndGet(from * STATE_COUNT + to);
+            Log.w(TAG, "rejected transition " + from + " -> " + to + " (" + rejected + ")");
+        }
+        return false;
+    }
+
+    private void notifyListeners(int from, int to) {
+        Log.d(TAG, "setState() " + from + " -> " + to);
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+
+    private static int checkState(int state) {
+        if (state < 0 || state >= STATE_COUNT) {
+            throw new IllegalArgumentException("unknown state: " + state);
+        }
+        return state;
+    }
+}
@@ -23,13 +23,20 @@ public interface Constants {
 
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
+    // arg1 is the number of bytes read, obj a copy of them, and the data
+    // carries the DEVICE_ADDRESS of the session they came from
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    // arg1 is the number of bytes of the job, arg2 the number of flushes it took,
+    // obj the address of the printer, and the data carries its JOB_ID
+    public static final int MESSAGE_JOB_WRITTEN = 6;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
+    public static final String DEVICE_ADDRESS = "device_address";
     public static final String TOAST = "toast";
+    public static final String JOB_ID = "job_id";
 
 }
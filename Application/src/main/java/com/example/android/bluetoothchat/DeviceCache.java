@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices found by earlier discoveries, kept in a small file so
+ * {@link DeviceListActivity} can list them as soon as it opens instead of
+ * waiting for a new discovery. Entries not seen for the maximum age are
+ * dropped.
+ */
+public class DeviceCache {
+
+    private static final String TAG = "DeviceCache";
+
+    private static final int VERSION = 1;
+
+    /**
+     * A device as it was last seen.
+     */
+    public static final class Entry {
+        public final String address;
+        public final String name;
+        /** BluetoothClass.getDeviceClass(), or 0 if unknown. */
+        public final int deviceClass;
+        public final long lastSeenMillis;
+        /** Signal strength in dBm, or Short.MIN_VALUE if unknown. */
+        public final short rssi;
+
+        Entry(String address, String name, int deviceClass, long lastSeenMillis, short rssi) {
+            this.address = address;
+            this.name = name;
+            this.deviceClass = deviceClass;
+            this.lastSeenMillis = lastSeenMillis;
+            this.rssi = rssi;
+        }
+    }
+
+    private final File mFile;
+    private final long mMaxAgeMillis;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mDirty;
+    // One save writes the file at a time
+    private final Object mSaveLock = new Object();
+
+    /**
+     * Load the cache. A missing or unreadable file gives an empty cache.
+     *
+     * @param file         The cache file
+     * @param maxAgeMillis How long a device stays listed after it was last seen
+     */
+    public DeviceCache(File file, long maxAgeMillis) {
+        mFile = file;
+        mMaxAgeMillis = maxAgeMillis;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                Log.e(TAG, "device cache unreadable, starting empty", e);
+                mEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * Record a device found by discovery.
+     *
+     * @param name        The name, or null to keep the one seen before
+     * @param deviceClass BluetoothClass.getDeviceClass(), or 0 if unknown
+     * @param rssi        Signal strength in dBm, or Short.MIN_VALUE if unknown
+     */
+    public synchronized Entry put(String address, String name, int deviceClass, short rssi) {
+        Entry old = mEntries.get(address);
+        if (name == null && old != null) {
+            name = old.name;
+        }
+        Entry entry = new Entry(address, name, deviceClass, System.currentTimeMillis(), rssi);
+        mEntries.put(address, entry);
+        mDirty = true;
+        return entry;
+    }
+
+    /**
+     * Return the devices that have not aged out, most recently seen first.
+     */
+    public synchronized List<Entry> getEntries() {
+        expire();
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastSeenMillis < b.lastSeenMillis ? 1
+                        : a.lastSeenMillis > b.lastSeenMillis ? -1 : 0;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Return true if no device has been seen within the given time, so a
+     * new discovery is worth its cost.
+     */
+    public synchronized boolean isStale(long refreshMillis) {
+        long newest = 0;
+        for (Entry entry : mEntries.values()) {
+            newest = Math.max(newest, entry.lastSeenMillis);
+        }
+        return System.currentTimeMillis() - newest > refreshMillis;
+    }
+
+    /**
+     * Write the cache back to its file if it changed. The entries are
+     * copied under the lock and written outside it, so a discovery that
+     * puts devices meanwhile is not held up by the file.
+     */
+    public void save() {
+        synchronized (mSaveLock) {
+            List<Entry> entries;
+            synchronized (this) {
+                expire();
+                if (!mDirty) {
+                    return;
+                }
+                entries = new ArrayList<Entry>(mEntries.values());
+                mDirty = false;
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(VERSION);
+                    out.writeInt(entries.size());
+                    for (Entry entry : entries) {
+                        out.writeUTF(entry.address);
+                        out.writeUTF(entry.name != null ? entry.name : "");
+                        out.writeInt(entry.deviceClass);
+                        out.writeLong(entry.lastSeenMillis);
+                        out.writeShort(entry.rssi);
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("could not replace " + mFile);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "save() of device cache failed", e);
+                synchronized (this) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readUTF();
+                Entry entry = new Entry(address, name.length() > 0 ? name : null,
+                        in.readInt(), in.readLong(), in.readShort());
+                mEntries.put(address, entry);
+            }
+        } finally {
+            in.close();
+        }
+        expire();
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - mMaxAgeMillis;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastSeenMillis < oldest) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.bluetoothchat;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -30,10 +31,13 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -41,6 +45,11 @@ import java.util.Set;
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ * <p>
+ * Paired devices and the devices found by earlier discoveries, from a
+ * {@link DeviceCache}, are looked up off the main thread and listed as
+ * soon as they are loaded; if no device was seen recently, discovery
+ * refreshes the list in the background.
  */
 public class DeviceListActivity extends Activity {
 
@@ -62,7 +71,61 @@ public class DeviceListActivity extends Activity {
     /**
      * Newly discovered devices
      */
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private ArrayAdapter<Object> mNewDevicesArrayAdapter;
+
+    /**
+     * Paired devices
+     */
+    private ArrayAdapter<Object> mPairedDevicesArrayAdapter;
+
+    /**
+     * Devices found by earlier discoveries, null until loaded
+     */
+    private DeviceCache mDeviceCache;
+
+    /**
+     * The scan button, enabled once the devices are loaded
+     */
+    private Button mScanButton;
+
+    /**
+     * Set in onDestroy, so a load that finishes later is dropped
+     */
+    private boolean mDestroyed;
+
+    /**
+     * Bluetooth devices and their names, shared with the rest of the app
+     */
+    private DeviceRegistry mDevices;
+
+    /**
+     * Addresses of the paired devices, which are not listed twice
+     */
+    private final Set<MacAddress> mPairedAddresses = new HashSet<MacAddress>();
+
+    /**
+     * A device in one of the lists. The ListView shows its name and address.
+     */
+    private static class DeviceRow {
+        final MacAddress address;
+        final String name;
+
+        DeviceRow(MacAddress address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name + "\n" + address;
+        }
+    }
+
+    // Devices not seen for a week are dropped from the cache
+    private static final long CACHE_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    // Discover again on open if no device was seen in the last 5 minutes
+    private static final long CACHE_REFRESH_AGE = 5 * 60 * 1000L;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -75,9 +138,11 @@ public class DeviceListActivity extends Activity {
         // Set result CANCELED in case the user backs out
         setResult(Activity.RESULT_CANCELED);
 
-        // Initialize the button to perform device discovery
-        Button scanButton = (Button) findViewById(R.id.button_scan);
-        scanButton.setOnClickListener(new View.OnClickListener() {
+        // Initialize the button to perform device discovery. Found devices
+        // go into the cache, so it waits for the cache to load
+        mScanButton = (Button) findViewById(R.id.button_scan);
+        mScanButton.setEnabled(false);
+        mScanButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
                 doDiscovery();
                 v.setVisibility(View.GONE);
@@ -86,13 +151,12 @@ public class DeviceListActivity extends Activity {
 
         // Initialize array adapters. One for already paired devices and
         // one for newly discovered devices
-        ArrayAdapter<String> pairedDevicesArrayAdapter =
-                new ArrayAdapter<String>(this, R.layout.device_name);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        mPairedDevicesArrayAdapter = new ArrayAdapter<Object>(this, R.layout.device_name);
+        mNewDevicesArrayAdapter = new ArrayAdapter<Object>(this, R.layout.device_name);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
-        pairedListView.setAdapter(pairedDevicesArrayAdapter);
+        pairedListView.setAdapter(mPairedDevicesArrayAdapter);
         pairedListView.setOnItemClickListener(mDeviceClickListener);
 
         // Find and set up the ListView for newly discovered devices
@@ -109,20 +173,70 @@ public class DeviceListActivity extends Activity {
         this.registerReceiver(mReceiver, filter);
 
         // Get the local Bluetooth adapter
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDevices = DeviceRegistry.getInstance();
+        mBtAdapter = mDevices.getAdapter();
+
+        // The paired devices and the cache file are read off the main thread
+        final File cacheFile = new File(getFilesDir(), "device_cache");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<DeviceRow> paired = new ArrayList<DeviceRow>();
+                for (BluetoothDevice device : mBtAdapter.getBondedDevices()) {
+                    String name = device.getName();
+                    paired.add(new DeviceRow(mDevices.put(device, name), name));
+                }
+                final DeviceCache cache = new DeviceCache(cacheFile, CACHE_MAX_AGE);
+                final List<DeviceCache.Entry> entries = cache.getEntries();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDevicesLoaded(paired, cache, entries);
+                    }
+                });
+            }
+        }, "DeviceListLoad").start();
+    }
 
-        // Get a set of currently paired devices
-        Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+    /**
+     * List the paired devices and the devices found before, then discover
+     * if the cache is out of date. Called on the main thread.
+     */
+    private void onDevicesLoaded(List<DeviceRow> paired, DeviceCache cache,
+                                 List<DeviceCache.Entry> entries) {
+        if (mDestroyed) {
+            return;
+        }
+        mDeviceCache = cache;
 
         // If there are paired devices, add each one to the ArrayAdapter
-        if (pairedDevices.size() > 0) {
+        if (paired.size() > 0) {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+            for (DeviceRow row : paired) {
+                mPairedDevicesArrayAdapter.add(row);
+                mPairedAddresses.add(row.address);
             }
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
-            pairedDevicesArrayAdapter.add(noDevices);
+            mPairedDevicesArrayAdapter.add(noDevices);
+        }
+
+        // List the devices found before, without waiting for discovery
+        for (DeviceCache.Entry entry : entries) {
+            MacAddress address = MacAddress.tryParse(entry.address);
+            if (address != null && !mPairedAddresses.contains(address)) {
+                findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+                mNewDevicesArrayAdapter.add(new DeviceRow(address, entry.name));
+            }
+        }
+
+        // Refresh the list in the background if it is out of date. A fresh
+        // cache skips discovery, which slows the connect that follows; the
+        // scan button still runs it on demand
+        mScanButton.setEnabled(true);
+        if (cache.isStale(CACHE_REFRESH_AGE)) {
+            doDiscovery();
+            mScanButton.setVisibility(View.GONE);
         }
     }
 
@@ -137,6 +251,25 @@ public class DeviceListActivity extends Activity {
 
         // Unregister broadcast listeners
         this.unregisterReceiver(mReceiver);
+
+        mDestroyed = true;
+        saveCache();
+    }
+
+    /**
+     * Write the cache back to its file off the main thread.
+     */
+    private void saveCache() {
+        final DeviceCache cache = mDeviceCache;
+        if (cache == null) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.save();
+            }
+        }, "DeviceCacheSave").start();
     }
 
     /**
@@ -167,16 +300,18 @@ public class DeviceListActivity extends Activity {
     private AdapterView.OnItemClickListener mDeviceClickListener
             = new AdapterView.OnItemClickListener() {
         public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+            // Get the device of the row; the "none found" rows have none
+            Object item = av.getItemAtPosition(arg2);
+            if (!(item instanceof DeviceRow)) {
+                return;
+            }
+
             // Cancel discovery because it's costly and we're about to connect
             mBtAdapter.cancelDiscovery();
 
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) v).getText().toString();
-            String address = info.substring(info.length() - 17);
-
             // Create the result Intent and include the MAC address
             Intent intent = new Intent();
-            intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, ((DeviceRow) item).address.toString());
 
             // Set result and finish this Activity
             setResult(Activity.RESULT_OK, intent);
@@ -197,9 +332,20 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                BluetoothClass bluetoothClass =
+                        intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                String name = device.getName();
+                MacAddress address = mDevices.put(device, name);
+                // A discovery already running may report before the cache is loaded
+                if (mDeviceCache != null) {
+                    name = mDeviceCache.put(address.toString(), name,
+                            bluetoothClass != null ? bluetoothClass.getDeviceClass() : 0,
+                            rssi).name;
+                }
                 // If it's already paired, skip it, because it's been listed already
                 if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                    addNewDevice(new DeviceRow(address, name));
                 }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
@@ -209,8 +355,24 @@ public class DeviceListActivity extends Activity {
                     String noDevices = getResources().getText(R.string.none_found).toString();
                     mNewDevicesArrayAdapter.add(noDevices);
                 }
+                saveCache();
             }
         }
     };
 
+    /**
+     * Put a discovered device at the top of the list, replacing the row
+     * it had from the cache.
+     */
+    private void addNewDevice(DeviceRow row) {
+        for (int i = mNewDevicesArrayAdapter.getCount() - 1; i >= 0; i--) {
+            Object item = mNewDevicesArrayAdapter.getItem(i);
+            // Drop the old row of the device, or the "none found" text
+            if (!(item instanceof DeviceRow) || ((DeviceRow) item).address.equals(row.address)) {
+                mNewDevicesArrayAdapter.remove(item);
+            }
+        }
+        mNewDevicesArrayAdapter.insert(row, 0);
+    }
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The BluetoothDevice objects and names of the devices the app deals with,
+ * keyed by {@link MacAddress}. getRemoteDevice() and getName() go through
+ * the Bluetooth service, so each device is looked up once and its name is
+ * only asked for when it is not known yet.
+ */
+public class DeviceRegistry {
+
+    private static DeviceRegistry sInstance;
+
+    private final BluetoothAdapter mAdapter;
+    private final Map<MacAddress, BluetoothDevice> mDevices =
+            new HashMap<MacAddress, BluetoothDevice>();
+    private final Map<MacAddress, String> mNames = new HashMap<MacAddress, String>();
+
+    public DeviceRegistry(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * Return the registry of the default adapter, shared by the whole app.
+     */
+    public static synchronized DeviceRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new DeviceRegistry(BluetoothAdapter.getDefaultAdapter());
+        }
+        return sInstance;
+    }
+
+    public BluetoothAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * Return the device with the given address.
+     */
+    public synchronized BluetoothDevice getDevice(MacAddress address) {
+        BluetoothDevice device = mDevices.get(address);
+        if (device == null) {
+            device = mAdapter.getRemoteDevice(address.toString());
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    /**
+     * Return the device with the given address, in colon form.
+     */
+    public BluetoothDevice getDevice(String address) {
+        return getDevice(MacAddress.parse(address));
+    }
+
+    /**
+     * Return the name of a device, asking the device only the first time.
+     *
+     * @return The name, or null if the device has none yet
+     */
+    public String getName(MacAddress address) {
+        BluetoothDevice device;
+        synchronized (this) {
+            String name = mNames.get(address);
+            if (name != null) {
+                return name;
+            }
+            device = getDevice(address);
+        }
+        // Outside the lock; this is a call into the Bluetooth service
+        String name = device.getName();
+        if (name != null) {
+            setName(address, name);
+        }
+        return name;
+    }
+
+    /**
+     * Record a device and its name as reported by discovery or the list of
+     * paired devices.
+     *
+     * @return The address of the device
+     */
+    public synchronized MacAddress put(BluetoothDevice device, String name) {
+        MacAddress address = MacAddress.parse(device.getAddress());
+        mDevices.put(address, device);
+        if (name != null) {
+            mNames.put(address, name);
+        }
+        return address;
+    }
+
+    /**
+     * Record the name of a device, such as one that changed.
+     */
+    public synchronized void setName(MacAddress address, String name) {
+        mNames.put(address, name);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * When a {@link JobBufferedOutputStream} pushes its buffered bytes to the
+ * socket: at the end of each job (the JOBE line), once a byte threshold is
+ * reached, and/or once buffered bytes have waited for the linger time.
+ * Tune the threshold to the receive buffer of the printer.
+ */
+public final class FlushPolicy {
+
+    /**
+     * Flush at the end of every job, every 1 KB, or after 20 ms.
+     */
+    public static final FlushPolicy DEFAULT = new FlushPolicy(true, 1024, 20);
+
+    private final boolean mFlushOnJobEnd;
+    private final int mThresholdBytes;
+    private final long mLingerMillis;
+
+    /**
+     * @param flushOnJobEnd  Flush as soon as the JOBE terminator has been written
+     * @param thresholdBytes Flush when this many bytes are buffered
+     * @param lingerMillis   Flush when buffered bytes have waited this long, 0 for never
+     */
+    public FlushPolicy(boolean flushOnJobEnd, int thresholdBytes, long lingerMillis) {
+        if (thresholdBytes <= 0) {
+            throw new IllegalArgumentException("thresholdBytes must be positive: "
+                    + thresholdBytes);
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative: "
+                    + lingerMillis);
+        }
+        mFlushOnJobEnd = flushOnJobEnd;
+        mThresholdBytes = thresholdBytes;
+        mLingerMillis = lingerMillis;
+    }
+
+    public boolean isFlushOnJobEnd() {
+        return mFlushOnJobEnd;
+    }
+
+    public int getThresholdBytes() {
+        return mThresholdBytes;
+    }
+
+    public long getLingerMillis() {
+        return mLingerMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{jobEnd=" + mFlushOnJobEnd + ", threshold=" + mThresholdBytes
+                + ", linger=" + mLingerMillis + "ms}";
+    }
+}
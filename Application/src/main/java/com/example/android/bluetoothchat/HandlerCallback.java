@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Passes the events of {@link BluetoothChatService} on to a Handler as the
+ * messages described in {@link Constants}.
+ */
+public class HandlerCallback implements ServiceCallback {
+
+    private final Handler mHandler;
+
+    public HandlerCallback(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void onStateChange(int state) {
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onRead(String address, byte[] data) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_READ, data.length, -1, data);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void onWrite(int length) {
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, length, -1).sendToTarget();
+    }
+
+    @Override
+    public void onJobWritten(String address, long jobId, int length, int flushes) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_JOB_WRITTEN, length, flushes,
+                address);
+        Bundle bundle = new Bundle();
+        bundle.putLong(Constants.JOB_ID, jobId);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void onDeviceName(String name) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, name);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void onToast(String text) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+}
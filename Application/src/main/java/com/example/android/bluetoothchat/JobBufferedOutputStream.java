@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that collects writes and passes them to the socket
+ * according to a {@link FlushPolicy}. It watches the bytes for the JOBE
+ * terminator, so it also knows where each print job ends and counts how
+ * many flushes, and how many bytes per flush, each job took.
+ * <p>
+ * Not thread safe; only the WriterThread of a connection uses it.
+ */
+public class JobBufferedOutputStream extends OutputStream {
+
+    // Line that ends a DaVinci print job
+    private static final byte[] JOB_TERMINATOR = {'J', 'O', 'B', 'E', '\n'};
+
+    private final OutputStream mOut;
+    private final FlushPolicy mPolicy;
+    private final byte[] mBuffer;
+    private int mCount;
+    private int mMatched;           // bytes of JOB_TERMINATOR matched so far
+    private long mFirstBufferedNanos;
+
+    // Statistics of the job being written
+    private int mJobFlushes;
+    private long mJobBytes;
+
+    // Statistics of the last completed job
+    private int mLastJobFlushes;
+    private long mLastJobBytes;
+    private int mCompletedJobs;
+
+    public JobBufferedOutputStream(OutputStream out, FlushPolicy policy) {
+        mOut = out;
+        mPolicy = policy;
+        mBuffer = new byte[policy.getThresholdBytes()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mBuffer[mCount++] = (byte) b;
+        onBuffered();
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        if (matchTerminator((byte) b)) {
+            endJob();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (matchTerminator(b[i])) {
+                append(b, start, i + 1 - start);
+                endJob();
+                start = i + 1;
+            }
+        }
+        append(b, start, end - start);
+    }
+
+    /**
+     * Push out everything that is buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Return how long until the buffered bytes reach the linger time, 0 if
+     * they already have, or -1 if nothing is buffered or there is no linger time.
+     */
+    public long getLingerRemainingMillis() {
+        long linger = mPolicy.getLingerMillis();
+        if (mCount == 0 || linger == 0) {
+            return -1;
+        }
+        long waited = (System.nanoTime() - mFirstBufferedNanos) / 1000000L;
+        return Math.max(0, linger - waited);
+    }
+
+    /**
+     * Flush if the buffered bytes have waited for the linger time.
+     */
+    public void flushIfLingered() throws IOException {
+        if (getLingerRemainingMillis() == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Return the number of flushes that carried bytes of the last completed job.
+     */
+    public int getLastJobFlushCount() {
+        return mLastJobFlushes;
+    }
+
+    /**
+     * Return the number of bytes of the last completed job.
+     */
+    public long getLastJobBytes() {
+        return mLastJobBytes;
+    }
+
+    /**
+     * Return the number of jobs completed on this stream.
+     */
+    public int getCompletedJobCount() {
+        return mCompletedJobs;
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, mBuffer.length - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            onBuffered();
+            off += n;
+            len -= n;
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+        }
+    }
+
+    private void onBuffered() {
+        if (mFirstBufferedNanos == 0) {
+            mFirstBufferedNanos = System.nanoTime();
+        }
+    }
+
+    private boolean matchTerminator(byte b) {
+        if (b == JOB_TERMINATOR[mMatched]) {
+            mMatched++;
+        } else {
+            mMatched = b == JOB_TERMINATOR[0] ? 1 : 0;
+        }
+        if (mMatched == JOB_TERMINATOR.length) {
+            mMatched = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void endJob() throws IOException {
+        if (mPolicy.isFlushOnJobEnd()) {
+            flush();
+        }
+        mLastJobFlushes = mJobFlushes;
+        mLastJobBytes = mJobBytes + (mPolicy.isFlushOnJobEnd() ? 0 : mCount);
+        mCompletedJobs++;
+        mJobFlushes = 0;
+        mJobBytes = mPolicy.isFlushOnJobEnd() ? 0 : -mCount;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mJobFlushes++;
+            mJobBytes += mCount;
+            mCount = 0;
+            mFirstBufferedNanos = 0;
+        }
+    }
+}
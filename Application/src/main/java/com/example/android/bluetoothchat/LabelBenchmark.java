@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A microbenchmark of rendering labels from a {@link LabelTemplate}
+ * against building the same script with a StringBuilder and copying it
+ * into the write buffer, as the label screen did before templates.
+ */
+public final class LabelBenchmark {
+
+    private static final String PART = "ABC-12345";
+    private static final String DATE = "2016.4.1";
+    private static final String QTY = "12";
+
+    // Keeps the results alive so the loops are not optimized away
+    private static volatile int sSink;
+
+    private LabelBenchmark() {
+    }
+
+    /**
+     * Render {@code jobs} labels each way and return one line per way with
+     * the jobs per second. Fields other than those of the built-in label are left empty.
+     */
+    public static List<String> run(LabelTemplate template, int jobs) {
+        PooledBuffer buffer = new BufferPool(1, 1024).acquire();
+        LabelTemplate.Job job = template.newJob();
+        job.setText(template.indexOf("part"), PART);
+        job.setText(template.indexOf("date"), DATE);
+        job.setText(template.indexOf("serial"), "001");
+        job.setText(template.indexOf("total"), QTY);
+        job.setInt(template.indexOf("digits"), 3);
+        int qty = template.indexOf("qty");
+        if (qty >= 0 && template.getFieldType(qty) == LabelTemplate.Type.INT) {
+            job.setInt(qty, Integer.parseInt(QTY));
+        } else {
+            job.setText(qty, QTY);
+        }
+        StringBuilder builder = new StringBuilder(512);
+        CommandEncoder encoder = new CommandEncoder(template.getCharset());
+
+        // Warm up each path once before timing it
+        template(job, buffer, jobs / 10 + 1);
+        stringBuilder(builder, encoder, buffer, jobs / 10 + 1);
+
+        List<String> lines = new ArrayList<String>();
+        lines.add(describe("template", template(job, buffer, jobs), jobs, buffer.length()));
+        lines.add(describe("StringBuilder", stringBuilder(builder, encoder, buffer, jobs), jobs,
+                buffer.length()));
+        buffer.release();
+        return lines;
+    }
+
+    private static long template(LabelTemplate.Job job, PooledBuffer buffer, int jobs) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            buffer.clear();
+            sink += job.render(buffer).length();
+        }
+        long nanos = System.nanoTime() - start;
+        sSink = sink;
+        return nanos;
+    }
+
+    // The hard-coded script of the label screen before LabelTemplate
+    private static long stringBuilder(StringBuilder job, CommandEncoder encoder,
+                                      PooledBuffer buffer, int jobs) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            job.setLength(0);
+            job.append("JOB\n");
+            job.append("DEF MK=1,MD=1,DR=2,DK=12,MS=39,PO=45,TO=110,PH=344,PW=384,UM=12,BM=12,XO=0,AF=1\n");
+            job.append("START\n");
+            job.append("BCD TP=7,X=0,Y=0,NW=1,RA=2,MG=1,HT=80\n");
+            job.append(PART).append("\n");
+            job.append("FONT TP=7,CS=0,LG=60,WD=48,LS=0\n");
+            job.append("TEXT X=0,Y=120,L=1\n");
+            job.append(PART).append("\n");
+            job.append("FONT TP=27,CS=0,LG=32,WD=32,LS=0\n");
+            job.append("TEXT X=0,Y=260,L=1\n");
+            job.append(DATE).append("\n");
+            job.append("TEXT X=250,Y=260,L=1,NS=1,NE=3,NK=1,NI=1,NZ=1,NB=0\n");
+            job.append("001/").append(QTY).append("\n");
+            job.append("QTY P=").append(QTY).append("\n");
+            job.append("END\n");
+            job.append("JOBE\n");
+            buffer.clear();
+            sink += encoder.encode(job, buffer).length();
+        }
+        long nanos = System.nanoTime() - start;
+        sSink = sink;
+        return nanos;
+    }
+
+    private static String describe(String name, long nanos, int jobs, int bytes) {
+        long perSecond = nanos > 0 ? jobs * 1000000000L / nanos : 0;
+        return name + ": " + perSecond + " jobs/s (" + bytes + "B)";
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A printer command script with named fields, compiled once into its
+ * constant bytes and the slots between them, so that rendering a job
+ * only copies bytes into the output buffer.
+ * <p>
+ * A field is written {@code {name}} for text or {@code {name:int}} for a
+ * number, and <code>{{</code> stands for a literal brace. A name may be used
+ * more than once. For example:
+ * <pre>
+ * QTY P={qty:int}
+ * </pre>
+ * Values are set on a {@link Job}, which is reused from job to job.
+ */
+public final class LabelTemplate {
+
+    /**
+     * The kinds of field.
+     */
+    public enum Type {
+        /** Text, encoded with the template's charset. */
+        TEXT,
+        /** An int, written in decimal without allocating. */
+        INT
+    }
+
+    private final CommandEncoder mEncoder;
+    // mConstants[i] comes before the i-th slot; the last one ends the script
+    private final byte[][] mConstants;
+    // The text of the constants, to encode them again for other charsets
+    private final String[] mConstantTexts;
+    private final boolean[] mConstantAscii;
+    // The field of each slot
+    private final int[] mSlotFields;
+    private final String[] mFieldNames;
+    private final Type[] mFieldTypes;
+
+    private LabelTemplate(Charset charset, String[] constantTexts, int[] slotFields,
+                          String[] fieldNames, Type[] fieldTypes) {
+        mEncoder = new CommandEncoder(charset);
+        mConstants = new byte[constantTexts.length][];
+        mConstantTexts = constantTexts;
+        mConstantAscii = new boolean[constantTexts.length];
+        for (int i = 0; i < constantTexts.length; i++) {
+            mConstants[i] = constantTexts[i].getBytes(charset);
+            mConstantAscii[i] = isAscii(constantTexts[i]) && mEncoder.isAsciiCompatible();
+        }
+        mSlotFields = slotFields;
+        mFieldNames = fieldNames;
+        mFieldTypes = fieldTypes;
+    }
+
+    /**
+     * Compile a template.
+     *
+     * @param source  The script with its fields
+     * @param charset The encoding the printer expects
+     * @throws IllegalArgumentException if a field is not closed, has an
+     *                                  unknown type, or is used with two types
+     */
+    public static LabelTemplate compile(CharSequence source, Charset charset) {
+        List<String> constants = new ArrayList<String>();
+        List<Integer> slotFields = new ArrayList<Integer>();
+        List<String> names = new ArrayList<String>();
+        List<Type> types = new ArrayList<Type>();
+        StringBuilder constant = new StringBuilder();
+        int length = source.length();
+        int i = 0;
+        while (i < length) {
+            char c = source.charAt(i++);
+            if (c != '{') {
+                constant.append(c);
+                continue;
+            }
+            if (i < length && source.charAt(i) == '{') {
+                constant.append('{');
+                i++;
+                continue;
+            }
+            int close = i;
+            while (close < length && source.charAt(close) != '}') {
+                close++;
+            }
+            if (close == length) {
+                throw new IllegalArgumentException("field not closed at " + (i - 1));
+            }
+            String field = source.subSequence(i, close).toString().trim();
+            i = close + 1;
+
+            Type type = Type.TEXT;
+            int colon = field.indexOf(':');
+            if (colon >= 0) {
+                String typeName = field.substring(colon + 1).trim();
+                if (typeName.equals("int")) {
+                    type = Type.INT;
+                } else if (!typeName.equals("text")) {
+                    throw new IllegalArgumentException("unknown field type: " + field);
+                }
+                field = field.substring(0, colon).trim();
+            }
+            int index = names.indexOf(field);
+            if (index < 0) {
+                index = names.size();
+                names.add(field);
+                types.add(type);
+            } else if (types.get(index) != type) {
+                throw new IllegalArgumentException("field used as two types: " + field);
+            }
+            constants.add(constant.toString());
+            constant.setLength(0);
+            slotFields.add(index);
+        }
+        constants.add(constant.toString());
+
+        int[] slots = new int[slotFields.size()];
+        for (int s = 0; s < slots.length; s++) {
+            slots[s] = slotFields.get(s);
+        }
+        return new LabelTemplate(charset, constants.toArray(new String[constants.size()]), slots,
+                names.toArray(new String[names.size()]), types.toArray(new Type[types.size()]));
+    }
+
+    /**
+     * Read and compile a template, such as a raw resource.
+     */
+    public static LabelTemplate load(InputStream in, Charset charset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return compile(new String(bytes.toByteArray(), charset), charset);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the charset the template was compiled for.
+     */
+    public Charset getCharset() {
+        return mEncoder.getCharset();
+    }
+
+    public int getFieldCount() {
+        return mFieldNames.length;
+    }
+
+    public String getFieldName(int field) {
+        return mFieldNames[field];
+    }
+
+    public Type getFieldType(int field) {
+        return mFieldTypes[field];
+    }
+
+    /**
+     * Return the index of a field, or -1 if the template doesn't use it.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < mFieldNames.length; i++) {
+            if (mFieldNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Job newJob() {
+        return new Job();
+    }
+
+    /**
+     * The values of one job. Set the fields, then {@link #render} it; the
+     * values stay until they are set again, so a Job can be reused.
+     * Not thread safe.
+     */
+    public final class Job {
+        private final CharSequence[] mText = new CharSequence[mFieldNames.length];
+        private final int[] mInt = new int[mFieldNames.length];
+        // Room for the digits of any int
+        private final byte[] mDigits = new byte[11];
+
+        private Job() {
+        }
+
+        public LabelTemplate getTemplate() {
+            return LabelTemplate.this;
+        }
+
+        /**
+         * Set a text field. A field set to null prints nothing. CR and LF
+         * in the value are printed as spaces, so that a value cannot end
+         * its command line and start a command of its own.
+         *
+         * @param field The index of the field, from {@link #indexOf}; -1 is ignored
+         */
+        public Job setText(int field, CharSequence value) {
+            if (field >= 0) {
+                mText[field] = singleLine(value);
+            }
+            return this;
+        }
+
+        /**
+         * Set a number field.
+         *
+         * @param field The index of the field, from {@link #indexOf}; -1 is ignored
+         */
+        public Job setInt(int field, int value) {
+            if (field >= 0) {
+                mInt[field] = value;
+            }
+            return this;
+        }
+
+        /**
+         * Append the script of this job to a buffer, in the charset of the template.
+         *
+         * @return The buffer
+         */
+        public PooledBuffer render(PooledBuffer out) {
+            return render(out, mEncoder);
+        }
+
+        /**
+         * Append the script of this job to a buffer, in the charset of a
+         * printer. Constants are copied as compiled when they are ASCII or
+         * the charset is the template's, and encoded again otherwise.
+         *
+         * @param encoder The encoder of the printer
+         * @return The buffer
+         */
+        public PooledBuffer render(PooledBuffer out, CommandEncoder encoder) {
+            boolean sameCharset = encoder == mEncoder
+                    || encoder.getCharset().equals(mEncoder.getCharset());
+            int[] slotFields = mSlotFields;
+            for (int s = 0; s < slotFields.length; s++) {
+                putConstant(out, s, encoder, sameCharset);
+                int field = slotFields[s];
+                if (mFieldTypes[field] != Type.INT) {
+                    if (mText[field] != null) {
+                        encoder.encode(mText[field], out);
+                    }
+                } else if (encoder.isAsciiCompatible()) {
+                    putInt(out, mInt[field]);
+                } else {
+                    encoder.encode(Integer.toString(mInt[field]), out);
+                }
+            }
+            putConstant(out, slotFields.length, encoder, sameCharset);
+            return out;
+        }
+
+        private void putConstant(PooledBuffer out, int index, CommandEncoder encoder,
+                                 boolean sameCharset) {
+            if (sameCharset || (mConstantAscii[index] && encoder.isAsciiCompatible())) {
+                out.put(mConstants[index]);
+            } else {
+                encoder.encode(mConstantTexts[index], out);
+            }
+        }
+
+        // The value itself unless it has a line break, which is rare
+        private CharSequence singleLine(CharSequence value) {
+            if (value == null) {
+                return null;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\r' || c == '\n') {
+                    return value.toString().replace('\r', ' ').replace('\n', ' ');
+                }
+            }
+            return value;
+        }
+
+        private void putInt(PooledBuffer out, int value) {
+            byte[] digits = mDigits;
+            int pos = digits.length;
+            long v = value < 0 ? -(long) value : value;
+            do {
+                digits[--pos] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            if (value < 0) {
+                digits[--pos] = '-';
+            }
+            out.put(digits, pos, digits.length - pos);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A histogram of durations with power-of-two millisecond buckets: under
+ * 1 ms, 1-2 ms, 2-4 ms and so on up to about 65 s, with one bucket for
+ * anything longer. Cheap to record into and precise enough to tell a
+ * 50 ms phase from a 500 ms one.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 18;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMinNanos = Long.MAX_VALUE;
+    private long mMaxNanos;
+
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts[bucketOf(nanos)]++;
+        mCount++;
+        mTotalNanos += nanos;
+        mMinNanos = Math.min(mMinNanos, nanos);
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMeanMillis() {
+        return mCount == 0 ? 0 : mTotalNanos / 1000000.0 / mCount;
+    }
+
+    public synchronized double getMinMillis() {
+        return mCount == 0 ? 0 : mMinNanos / 1000000.0;
+    }
+
+    public synchronized double getMaxMillis() {
+        return mMaxNanos / 1000000.0;
+    }
+
+    /**
+     * Return the upper bound of the bucket that holds the given percentile,
+     * in milliseconds, or the maximum for the last bucket.
+     *
+     * @param percentile 0 to 100
+     */
+    public synchronized double getPercentileMillis(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Return the number of durations in each bucket. Bucket 0 holds those
+     * under 1 ms, bucket i those from 2^(i-1) to 2^i ms, and the last one
+     * everything longer.
+     */
+    public synchronized long[] getBucketCounts() {
+        return mCounts.clone();
+    }
+
+    /**
+     * Return a copy that no longer changes.
+     */
+    public synchronized LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        System.arraycopy(mCounts, 0, copy.mCounts, 0, BUCKETS);
+        copy.mCount = mCount;
+        copy.mTotalNanos = mTotalNanos;
+        copy.mMinNanos = mMinNanos;
+        copy.mMaxNanos = mMaxNanos;
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%.1fms p50<=%.0fms p90<=%.0fms max=%.1fms", mCount,
+                getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90),
+                getMaxMillis());
+    }
+
+    private static int bucketOf(long nanos) {
+        long millis = nanos / 1000000L;
+        if (millis == 0) {
+            return 0;
+        }
+        // 1 ms -> 1, 2-3 ms -> 2, 4-7 ms -> 3, ...
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
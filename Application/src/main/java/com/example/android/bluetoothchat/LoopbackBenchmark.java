@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A benchmark of the whole write path: jobs go through
+ * {@link BluetoothChatService#writeJob(CharSequence)}, the outbound queue
+ * and the writer thread to a {@link TcpTransport} socket, and are read
+ * back by a loopback listener standing in for the printer. It reports to
+ * a {@link ServiceCallback}, not a Handler, so it runs on a development
+ * machine as well as on the phone:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.LoopbackBenchmark [jobs]
+ * </pre>
+ * It also counts the threads the service keeps alive after repeated
+ * start() and connect() calls, with and without client-only mode.
+ */
+public final class LoopbackBenchmark {
+
+    private static final int DEFAULT_JOBS = 20000;
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final int CHURN_ROUNDS = 30;
+
+    // The built-in label with its fields filled in
+    private static final String JOB = "JOB\n"
+            + "DEF MK=1,MD=1,DR=2,DK=12,MS=39,PO=45,TO=110,PH=344,PW=384,UM=12,BM=12,XO=0,AF=1\n"
+            + "START\n"
+            + "BCD TP=7,X=0,Y=0,NW=1,RA=2,MG=1,HT=80\n"
+            + "ABC-12345\n"
+            + "FONT TP=7,CS=0,LG=60,WD=48,LS=0\n"
+            + "TEXT X=0,Y=120,L=1\n"
+            + "ABC-12345\n"
+            + "FONT TP=27,CS=0,LG=32,WD=32,LS=0\n"
+            + "TEXT X=0,Y=260,L=1\n"
+            + "2016.4.1\n"
+            + "TEXT X=250,Y=260,L=1,NS=1,NE=3,NK=1,NI=1,NZ=1,NB=0\n"
+            + "001/12\n"
+            + "QTY P=12\n"
+            + "END\n"
+            + "JOBE\n";
+
+    private LoopbackBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_JOBS;
+        for (String line : run(jobs)) {
+            System.out.println(line);
+        }
+        System.out.println(churn(CHURN_ROUNDS, false));
+        System.out.println(churn(CHURN_ROUNDS, true));
+    }
+
+    /**
+     * Connect to a loopback listener, write {@code jobs} jobs and wait until
+     * the listener has read them all.
+     *
+     * @return One line with the time to connect, and one with the jobs per
+     * second and bytes per second written
+     */
+    public static List<String> run(int jobs) throws IOException, InterruptedException {
+        final ServerSocket printer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final long expected = (long) jobs * JOB.length();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        Thread reader = new Thread("LoopbackPrinter") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = printer.accept();
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    long total = 0;
+                    int n;
+                    while (total < expected && (n = in.read(buffer)) > 0) {
+                        total += n;
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // Reported as a timeout below
+                    return;
+                }
+                received.countDown();
+            }
+        };
+        reader.start();
+
+        BluetoothChatService service = new BluetoothChatService(new Callback(connected),
+                new TcpTransport(printer.getLocalPort()));
+        List<String> lines = new ArrayList<String>();
+        try {
+            service.setClientOnly(true);
+            service.setOverflowPolicy(OutboundQueue.OverflowPolicy.BLOCK);
+            long start = System.nanoTime();
+            service.connect(TcpTransport.formatAddress("127.0.0.1", printer.getLocalPort()),
+                    false);
+            if (!connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("could not connect to the loopback listener");
+            }
+            long connectNanos = System.nanoTime() - start;
+            lines.add("connect: " + connectNanos / 1000 + "us");
+
+            start = System.nanoTime();
+            for (int i = 0; i < jobs; i++) {
+                if (!service.writeJob(JOB)) {
+                    throw new IOException("job " + i + " was refused");
+                }
+            }
+            if (!received.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("the loopback listener did not get every job");
+            }
+            long nanos = System.nanoTime() - start;
+            long perSecond = nanos > 0 ? jobs * 1000000000L / nanos : 0;
+            lines.add("writeJob: " + perSecond + " jobs/s, "
+                    + (nanos > 0 ? expected * 1000000000L / nanos / 1024 : 0) + "KB/s ("
+                    + JOB.length() + "B)");
+        } finally {
+            service.stop();
+            printer.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Call start(), connect to a loopback listener and write a job,
+     * {@code rounds} times over, as a screen that reconnects on every
+     * resume does, and count the pool threads left alive.
+     *
+     * @param clientOnly Whether the service runs in client-only mode
+     * @return One line with the live and running threads
+     */
+    public static String churn(int rounds, boolean clientOnly)
+            throws IOException, InterruptedException {
+        final ServerSocket printer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("LoopbackPrinter") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        drain(printer.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            }
+        };
+        acceptor.start();
+
+        // The service listens on two ports of its own when not client-only
+        ServerSocket free = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int listenPort = free.getLocalPort();
+        free.close();
+        BluetoothChatService service = new BluetoothChatService(new Callback(null),
+                new TcpTransport(listenPort));
+        String address = TcpTransport.formatAddress("127.0.0.1", printer.getLocalPort());
+        try {
+            service.setClientOnly(clientOnly);
+            for (int i = 0; i < rounds; i++) {
+                service.start();
+                service.connect(address, false);
+                Thread.sleep(50);
+                service.writeJob(JOB);
+                Thread.sleep(20);
+            }
+            return "churn" + (clientOnly ? " (client-only)" : "") + ": "
+                    + service.getLiveThreadCount() + " threads alive, running "
+                    + service.getRunningTasks();
+        } finally {
+            service.stop();
+            printer.close();
+        }
+    }
+
+    // Read a connection to the end on a thread of its own
+    private static void drain(final Socket socket) {
+        new Thread("LoopbackSession") {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) > 0) {
+                        // Discard
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // The service closed the connection
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Ignores everything but the service becoming connected.
+     */
+    private static class Callback implements ServiceCallback {
+        private final CountDownLatch mConnected;
+
+        Callback(CountDownLatch connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        public void onStateChange(int state) {
+            if (mConnected != null && state == BluetoothChatService.STATE_CONNECTED) {
+                mConnected.countDown();
+            }
+        }
+
+        @Override
+        public void onRead(String address, byte[] data) {
+        }
+
+        @Override
+        public void onWrite(int length) {
+        }
+
+        @Override
+        public void onJobWritten(String address, long jobId, int length, int flushes) {
+        }
+
+        @Override
+        public void onDeviceName(String name) {
+        }
+
+        @Override
+        public void onToast(String text) {
+        }
+    }
+}
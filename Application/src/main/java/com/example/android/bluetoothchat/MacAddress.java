@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A Bluetooth MAC address packed into the low 48 bits of a long, so it can
+ * be compared, hashed and used as a key without string work. Parses the
+ * colon form ("00:11:22:AA:BB:CC"), the dash form and the 12 digit form
+ * printed on the printer's barcode ("001122AABBCC").
+ */
+public final class MacAddress implements Comparable<MacAddress> {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final long mValue;
+    // The colon form, made on first use
+    private String mString;
+
+    private MacAddress(long value) {
+        mValue = value;
+    }
+
+    public static MacAddress valueOf(long value) {
+        if ((value & ~0xFFFFFFFFFFFFL) != 0) {
+            throw new IllegalArgumentException("not a 48 bit address: " + Long.toHexString(value));
+        }
+        return new MacAddress(value);
+    }
+
+    /**
+     * Parse an address in colon, dash or 12 digit form, in either case.
+     *
+     * @throws IllegalArgumentException if the text is not an address
+     */
+    public static MacAddress parse(CharSequence s) {
+        MacAddress address = tryParse(s);
+        if (address == null) {
+            throw new IllegalArgumentException("not a MAC address: " + s);
+        }
+        return address;
+    }
+
+    /**
+     * Parse an address in colon, dash or 12 digit form, in either case.
+     *
+     * @return The address, or null if the text is not one
+     */
+    public static MacAddress tryParse(CharSequence s) {
+        int length = s.length();
+        if (length == 12) {
+            return parseDigits(s, false);
+        }
+        if (length != 17) {
+            return null;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = s.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') {
+                    return null;
+                }
+                continue;
+            }
+            int digit = hexDigit(c, false);
+            if (digit < 0) {
+                return null;
+            }
+            value = (value << 4) | digit;
+        }
+        return new MacAddress(value);
+    }
+
+    /**
+     * Parse the address of a printer barcode: exactly 12 upper case hex digits.
+     *
+     * @return The address, or null if the text is not one
+     */
+    public static MacAddress fromBarcode(CharSequence s) {
+        return s.length() == 12 ? parseDigits(s, true) : null;
+    }
+
+    private static MacAddress parseDigits(CharSequence s, boolean upperCaseOnly) {
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = hexDigit(s.charAt(i), upperCaseOnly);
+            if (digit < 0) {
+                return null;
+            }
+            value = (value << 4) | digit;
+        }
+        return new MacAddress(value);
+    }
+
+    private static int hexDigit(char c, boolean upperCaseOnly) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (!upperCaseOnly && c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    public long toLong() {
+        return mValue;
+    }
+
+    /**
+     * Return the colon form with upper case digits, as Android uses it.
+     */
+    @Override
+    public String toString() {
+        String s = mString;
+        if (s == null) {
+            char[] chars = new char[17];
+            for (int i = 0; i < 6; i++) {
+                int b = (int) (mValue >>> (40 - 8 * i)) & 0xFF;
+                chars[i * 3] = HEX[b >>> 4];
+                chars[i * 3 + 1] = HEX[b & 0x0F];
+                if (i < 5) {
+                    chars[i * 3 + 2] = ':';
+                }
+            }
+            s = new String(chars);
+            mString = s;
+        }
+        return s;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MacAddress && ((MacAddress) o).mValue == mValue;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mValue ^ (mValue >>> 32));
+    }
+
+    @Override
+    public int compareTo(MacAddress other) {
+        return mValue < other.mValue ? -1 : mValue > other.mValue ? 1 : 0;
+    }
+}
@@ -117,6 +117,17 @@ public class MainActivity extends SampleActivityBase {
 
         Log.i(TAG, "Ready");
     }
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        // スキャナ直接入力がオンなら、読み取りのキーは入力欄に渡さない
+        BluetoothChatFragment fragment = (BluetoothChatFragment) getSupportFragmentManager()
+                .findFragmentById(R.id.sample_content_fragment);
+        if (fragment != null && fragment.onScannerKey(event)) {
+            return true;
+        }
+        return super.dispatchKeyEvent(event);
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event){
         if (keyCode == KeyEvent.KEYCODE_BACK){
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A bounded ring buffer of outgoing writes. The UI side offers buffers and
+ * returns right away; the writer thread of a connection takes them off in
+ * order and does the blocking socket write.
+ */
+public class OutboundQueue {
+
+    /**
+     * What {@link #offer(PooledBuffer, boolean, long)} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until the writer has made room. */
+        BLOCK,
+        /** Silently discard the new buffer. */
+        DROP,
+        /** Reject the new buffer so the caller can report it. */
+        FAIL
+    }
+
+    /**
+     * One slot of the ring. Slots are allocated once and reused.
+     */
+    public static final class Entry {
+        public PooledBuffer buffer;
+        public boolean job;
+        public long spoolId;
+        public long jobId;
+    }
+
+    private final Entry[] mSlots;
+    private OverflowPolicy mPolicy;
+    private int mHead;      // next slot to take
+    private int mCount;     // number of queued entries
+    private int mDropped;   // buffers rejected because the queue was full
+    private boolean mClosed;
+
+    /**
+     * @param capacity Maximum number of queued buffers
+     * @param policy   What to do when the queue is full
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mSlots = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Entry();
+        }
+        mPolicy = policy;
+    }
+
+    /**
+     * Queue a buffer for the writer thread. The queue takes ownership of the
+     * buffer only if this returns true; otherwise the caller must release it.
+     *
+     * @param buffer  The bytes to write
+     * @param job     true if the buffer is a complete print job
+     * @param spoolId The id of the job in the {@link PrintSpool}, or 0
+     * @param jobId   The id the write is reported with once written
+     * @return true if the buffer was queued, false if it was dropped, rejected
+     * or the queue has been closed
+     */
+    public synchronized boolean offer(PooledBuffer buffer, boolean job, long spoolId,
+                                      long jobId) {
+        while (!mClosed && mCount == mSlots.length) {
+            if (mPolicy != OverflowPolicy.BLOCK) {
+                mDropped++;
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (mClosed) {
+            return false;
+        }
+        Entry slot = mSlots[(mHead + mCount) % mSlots.length];
+        slot.buffer = buffer;
+        slot.job = job;
+        slot.spoolId = spoolId;
+        slot.jobId = jobId;
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the oldest queued buffer, waiting until one is available.
+     *
+     * @param out Receives the buffer, its job flag and spool id
+     * @return false if the queue has been closed
+     */
+    public synchronized boolean take(Entry out) throws InterruptedException {
+        return poll(out, -1);
+    }
+
+    /**
+     * Take the oldest queued buffer, waiting at most the given time.
+     *
+     * @param out           Receives the buffer, its job flag and spool id
+     * @param timeoutMillis How long to wait, or a negative value to wait forever
+     * @return false if the time ran out or the queue has been closed
+     */
+    public synchronized boolean poll(Entry out, long timeoutMillis)
+            throws InterruptedException {
+        if (timeoutMillis < 0) {
+            while (!mClosed && mCount == 0) {
+                wait();
+            }
+        } else {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (!mClosed && mCount == 0 && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        if (mClosed || mCount == 0) {
+            return false;
+        }
+        Entry slot = mSlots[mHead];
+        out.buffer = slot.buffer;
+        out.job = slot.job;
+        out.spoolId = slot.spoolId;
+        out.jobId = slot.jobId;
+        slot.buffer = null;
+        mHead = (mHead + 1) % mSlots.length;
+        mCount--;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Close the queue. Queued buffers are released back to their pool and
+     * any waiting thread is woken up.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        for (int i = 0; i < mCount; i++) {
+            Entry slot = mSlots[(mHead + i) % mSlots.length];
+            slot.buffer.release();
+            slot.buffer = null;
+        }
+        mCount = 0;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized void setPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+        notifyAll();
+    }
+
+    public synchronized OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Return the number of buffers waiting to be written.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Return how many buffers were dropped or rejected because the queue was full.
+     */
+    public synchronized int getDroppedCount() {
+        return mDropped;
+    }
+}
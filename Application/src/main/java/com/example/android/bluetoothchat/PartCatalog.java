@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part master: every part number that may be printed, with its
+ * description fields, kept in a file that is memory-mapped rather than
+ * loaded, so opening it costs nothing and a lookup touches only the pages
+ * it reads.
+ * <p>
+ * The file is made from a CSV export by {@link #importCsv}. Its records
+ * are sorted by the UTF-8 bytes of the part number and found by a binary
+ * search over an offset index, so a lookup reads about 20 records even
+ * for a million parts. Layout, big-endian:
+ * <pre>
+ * int   MAGIC, VERSION, record count
+ * short field count, then per field: short length, UTF-8 name
+ * int   offset of each record, in part number order
+ * per record: short length, UTF-8 part number, then per field:
+ *             short length, UTF-8 value
+ * </pre>
+ */
+public class PartCatalog {
+
+    private static final int MAGIC = 0x50434154; // "PCAT"
+    private static final int VERSION = 1;
+
+    /**
+     * A part found in the catalog.
+     */
+    public static final class Part {
+        public final String number;
+        private final String[] mNames;
+        private final String[] mValues;
+
+        Part(String number, String[] names, String[] values) {
+            this.number = number;
+            mNames = names;
+            mValues = values;
+        }
+
+        /**
+         * Return the value of a field, or null if the catalog has no such field.
+         */
+        public String get(String name) {
+            for (int i = 0; i < mNames.length; i++) {
+                if (mNames[i].equals(name)) {
+                    return mValues[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Return the fields by name, in the column order of the CSV.
+         */
+        public Map<String, String> getFields() {
+            Map<String, String> fields = new LinkedHashMap<String, String>();
+            for (int i = 0; i < mNames.length; i++) {
+                fields.put(mNames[i], mValues[i]);
+            }
+            return fields;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final String[] mFieldNames;
+    private final int mIndexOffset;
+
+    private PartCatalog(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a part catalog");
+        }
+        mCount = buffer.getInt(8);
+        int fieldCount = buffer.getChar(12);
+        mFieldNames = new String[fieldCount];
+        int offset = 14;
+        for (int i = 0; i < fieldCount; i++) {
+            mFieldNames[i] = readString(offset);
+            offset += 2 + buffer.getChar(offset);
+        }
+        mIndexOffset = offset;
+        if (mIndexOffset + 4L * mCount > buffer.limit()) {
+            throw new IOException("part catalog truncated");
+        }
+    }
+
+    /**
+     * Map a catalog file made by {@link #importCsv}.
+     *
+     * @throws IOException if the file can't be read or is not a catalog
+     */
+    public static PartCatalog open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new PartCatalog(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Return the names of the description fields, in the column order of the CSV.
+     */
+    public List<String> getFieldNames() {
+        return Collections.unmodifiableList(Arrays.asList(mFieldNames));
+    }
+
+    /**
+     * Find a part by its number.
+     *
+     * @return The part, or null if the catalog doesn't have it
+     */
+    public Part lookup(String number) {
+        byte[] key = number.getBytes(UTF_8);
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = mBuffer.getInt(mIndexOffset + 4 * mid);
+            int cmp = compareKey(record, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readPart(number, record);
+            }
+        }
+        return null;
+    }
+
+    // Compare the part number of the record at offset with key, as unsigned bytes
+    private int compareKey(int offset, byte[] key) {
+        int length = mBuffer.getChar(offset);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = mBuffer.get(offset + 2 + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    private Part readPart(String number, int offset) {
+        offset += 2 + mBuffer.getChar(offset);
+        String[] values = new String[mFieldNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(offset);
+            offset += 2 + mBuffer.getChar(offset);
+        }
+        return new Part(number, mFieldNames, values);
+    }
+
+    private String readString(int offset) {
+        int length = mBuffer.getChar(offset);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Build a catalog file from CSV. The first row names the columns; the
+     * first column is the part number and the others become the description
+     * fields. Quoted values may hold commas, quotes ("") and line breaks.
+     * Rows with an empty part number are skipped, and a part listed twice
+     * keeps its last row. A value longer than 65535 bytes of UTF-8 is cut
+     * after the last whole character that fits. The file is written beside
+     * {@code out} and renamed over it, so an open catalog stays whole.
+     *
+     * @param csv     The CSV export of the part master
+     * @param charset The encoding of the CSV
+     * @param out     The catalog file to write
+     * @return The number of parts written
+     * @throws IOException if the CSV can't be read or has no header
+     */
+    public static int importCsv(InputStream csv, Charset charset, File out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(csv, charset));
+        List<String> header = readRow(reader);
+        if (header == null) {
+            throw new IOException("CSV has no header");
+        }
+        // A byte order mark from Excel is not part of the first column name
+        if (header.get(0).length() > 0 && header.get(0).charAt(0) == '\uFEFF') {
+            header.set(0, header.get(0).substring(1));
+        }
+        int fieldCount = header.size() - 1;
+
+        List<byte[][]> rows = new ArrayList<byte[][]>();
+        List<String> row;
+        while ((row = readRow(reader)) != null) {
+            String number = row.get(0).trim();
+            if (number.length() == 0) {
+                continue;
+            }
+            byte[][] encoded = new byte[1 + fieldCount][];
+            encoded[0] = limit(number.getBytes(UTF_8));
+            for (int i = 1; i <= fieldCount; i++) {
+                encoded[i] = limit(i < row.size() ? row.get(i).getBytes(UTF_8) : new byte[0]);
+            }
+            rows.add(encoded);
+        }
+        // Stable, so of two rows of one part the later stays last
+        Collections.sort(rows, new Comparator<byte[][]>() {
+            @Override
+            public int compare(byte[][] a, byte[][] b) {
+                return compareBytes(a[0], b[0]);
+            }
+        });
+        List<byte[][]> parts = new ArrayList<byte[][]>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            if (i + 1 < rows.size() && compareBytes(rows.get(i)[0], rows.get(i + 1)[0]) == 0) {
+                continue;
+            }
+            parts.add(rows.get(i));
+        }
+
+        File tmp = new File(out.getPath() + ".tmp");
+        DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(parts.size());
+            data.writeShort(fieldCount);
+            int offset = 14;
+            for (int i = 1; i <= fieldCount; i++) {
+                byte[] name = limit(header.get(i).trim().getBytes(UTF_8));
+                data.writeShort(name.length);
+                data.write(name);
+                offset += 2 + name.length;
+            }
+            offset += 4 * parts.size();
+            for (byte[][] part : parts) {
+                data.writeInt(offset);
+                for (byte[] value : part) {
+                    offset += 2 + value.length;
+                }
+            }
+            for (byte[][] part : parts) {
+                for (byte[] value : part) {
+                    data.writeShort(value.length);
+                    data.write(value);
+                }
+            }
+        } finally {
+            data.close();
+        }
+        if (!tmp.renameTo(out)) {
+            throw new IOException("could not replace " + out);
+        }
+        return parts.size();
+    }
+
+    /**
+     * Cut UTF-8 to the most a length field holds, before the character
+     * that would not fit whole.
+     */
+    private static byte[] limit(byte[] bytes) {
+        if (bytes.length <= Character.MAX_VALUE) {
+            return bytes;
+        }
+        int end = Character.MAX_VALUE;
+        // Back up over continuation bytes (10xxxxxx) to the start of the character
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Read one CSV row, or return null at the end of the input.
+     */
+    private static List<String> readRow(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    break;
+                }
+                // A line break inside quotes belongs to the value
+                line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                value.append('\n');
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i < line.length() && line.charAt(i) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
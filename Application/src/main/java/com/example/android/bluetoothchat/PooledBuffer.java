@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A growable byte buffer owned by a {@link BufferPool}. Call {@link #release()}
+ * exactly once when the contents are no longer needed. Text is appended
+ * through {@link CommandEncoder#encode(CharSequence, PooledBuffer)}, in the
+ * charset of the printer.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool mPool;
+    private byte[] mData;
+    private int mLength;
+    boolean mPooled;
+
+    PooledBuffer(BufferPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Return the backing array. Only the first {@link #length()} bytes are valid.
+     */
+    public byte[] array() {
+        return mData;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    public void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * Append raw bytes.
+     */
+    public PooledBuffer put(byte[] src, int offset, int count) {
+        ensureCapacity(mLength + count);
+        System.arraycopy(src, offset, mData, mLength, count);
+        mLength += count;
+        return this;
+    }
+
+    public PooledBuffer put(byte[] src) {
+        return put(src, 0, src.length);
+    }
+
+    /**
+     * Hand this buffer back to its pool.
+     */
+    public void release() {
+        mPool.recycle(this);
+    }
+
+    /**
+     * Set the number of valid bytes, after writing into {@link #array()}.
+     */
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            byte[] data = new byte[Math.max(capacity, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An on-device spool of print jobs, kept in an append-only journal file.
+ * A job is added before it is transmitted and marked done once its last
+ * byte has been written, so jobs that were cut off by a lost connection
+ * (or submitted while reconnecting) survive and can be sent again.
+ * <p>
+ * Records are built by the caller but written by the spool's own journal
+ * thread, in the order they were made, so {@link #add} and
+ * {@link #markDone} never block on the file and may be called from the
+ * main thread. Appends are not forced to disk one by one; {@link #sync()}
+ * forces everything appended so far in a single fsync, and a job added
+ * with {@code durable} set asks the journal thread to force it as soon as
+ * the appends queued before it are written, in one fsync for a burst.
+ * Each record carries a CRC32, and a torn record at the end of the
+ * journal is discarded when the spool is opened.
+ */
+public class PrintSpool {
+
+    private static final String TAG = "PrintSpool";
+
+    // Record types
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_DONE = 2;
+
+    // Larger records can only come from a corrupt journal
+    private static final int MAX_JOB_SIZE = 1024 * 1024;
+
+    // Compact the journal once it holds this much finished data
+    private static final long COMPACT_SIZE = 256 * 1024;
+
+    /**
+     * A job that has not been completely transmitted yet.
+     */
+    public static final class Job {
+        public final long id;
+        public final String address;
+        public final byte[] data;
+
+        Job(long id, String address, byte[] data) {
+            this.id = id;
+            this.address = address;
+            this.data = data;
+        }
+    }
+
+    private final File mFile;
+    private final LinkedHashMap<Long, Job> mPending = new LinkedHashMap<Long, Job>();
+    private final CRC32 mCrc = new CRC32();
+    // Written only by the journal thread once the spool is open
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private long mNextId = 1;
+    private boolean mDirty;
+    private boolean mSyncQueued;    // a forced sync waits on the journal thread
+    private final ExecutorService mJournal = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+
+    /**
+     * Open the spool, recovering the jobs still pending in the journal.
+     *
+     * @param file The journal file. It is created if it does not exist.
+     */
+    public PrintSpool(File file) throws IOException {
+        mFile = file;
+        if (file.exists()) {
+            recover();
+        }
+        rewrite();
+    }
+
+    /**
+     * Add a job to the spool. The record is written to the journal in the
+     * background and not forced to disk until {@link #sync()}, unless
+     * {@code durable} is set.
+     *
+     * @param address The address of the printer the job is for
+     * @param data    The job bytes
+     * @param durable Force the job to disk without waiting for a sync, for
+     *                jobs that will not be sent soon
+     * @return The id of the new job
+     */
+    public synchronized long add(String address, byte[] data, int offset, int count,
+                                 boolean durable) throws IOException {
+        byte[] copy = new byte[count];
+        System.arraycopy(data, offset, copy, 0, count);
+        Job job = new Job(mNextId++, address, copy);
+        append(addRecord(job));
+        mPending.put(job.id, job);
+        if (durable && !mSyncQueued) {
+            // Jobs added before this runs are forced by the same fsync
+            mSyncQueued = true;
+            mJournal.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PrintSpool.this) {
+                        mSyncQueued = false;
+                    }
+                    try {
+                        force();
+                    } catch (IOException e) {
+                        Log.e(TAG, "sync of spool failed", e);
+                    }
+                }
+            });
+        }
+        return job.id;
+    }
+
+    /**
+     * Mark a job as completely transmitted.
+     */
+    public synchronized void markDone(long id) throws IOException {
+        if (mPending.remove(id) == null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4);
+        record.put(RECORD_DONE).putLong(id);
+        append(seal(record));
+        if (mPending.isEmpty()) {
+            mJournal.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        Log.e(TAG, "compaction of spool failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Force everything appended so far to disk, waiting for the journal
+     * thread to write it first.
+     */
+    public void sync() throws IOException {
+        Future<?> done = mJournal.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    force();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for spool sync");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause().getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Return the pending jobs for a printer, oldest first.
+     *
+     * @param address The address of the printer
+     */
+    public synchronized List<Job> getPending(String address) {
+        List<Job> jobs = new ArrayList<Job>();
+        for (Job job : mPending.values()) {
+            if (job.address.equals(address)) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Return the number of pending jobs for all printers.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Return the number of jobs not yet transmitted for a printer.
+     */
+    public synchronized int getPendingCount(String address) {
+        int count = 0;
+        for (Job job : mPending.values()) {
+            if (job.address.equals(address)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drop all pending jobs for a printer without sending them.
+     */
+    public synchronized void discard(String address) throws IOException {
+        for (Job job : getPending(address)) {
+            markDone(job.id);
+        }
+    }
+
+    /**
+     * Write and force what is queued, then close the journal.
+     */
+    public void close() {
+        mJournal.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    force();
+                    mRaf.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of spool failed", e);
+                }
+            }
+        });
+        mJournal.shutdown();
+        try {
+            mJournal.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Queue a sealed record for the journal thread
+    private void append(final ByteBuffer record) {
+        record.flip();
+        mJournal.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (record.hasRemaining()) {
+                        mChannel.write(record);
+                    }
+                    mDirty = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "write to spool failed", e);
+                }
+            }
+        });
+    }
+
+    // On the journal thread
+    private void force() throws IOException {
+        if (mDirty) {
+            mChannel.force(false);
+            mDirty = false;
+        }
+    }
+
+    // On the journal thread
+    private void compact() throws IOException {
+        synchronized (this) {
+            // Records of jobs added since are queued behind this task
+            if (!mPending.isEmpty()) {
+                return;
+            }
+        }
+        if (mChannel.size() > COMPACT_SIZE) {
+            // Nothing left to keep, start the journal over
+            mChannel.truncate(0);
+            mChannel.position(0);
+            mChannel.force(true);
+            mDirty = false;
+        }
+    }
+
+    private ByteBuffer addRecord(Job job) throws IOException {
+        byte[] address = job.address.getBytes("UTF-8");
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 2 + address.length + 4
+                + job.data.length + 4);
+        record.put(RECORD_ADD).putLong(job.id);
+        record.putShort((short) address.length).put(address);
+        record.putInt(job.data.length).put(job.data);
+        return seal(record);
+    }
+
+    private ByteBuffer seal(ByteBuffer record) {
+        mCrc.reset();
+        mCrc.update(record.array(), 0, record.position());
+        record.putInt((int) mCrc.getValue());
+        return record;
+    }
+
+    /**
+     * Read the journal back, stopping at the first incomplete or corrupt record.
+     */
+    private void recover() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        long maxId = 0;
+        try {
+            while (true) {
+                mCrc.reset();
+                byte type = in.readByte();
+                long id = in.readLong();
+                ByteBuffer head = ByteBuffer.allocate(9).put(type).putLong(id);
+                mCrc.update(head.array(), 0, 9);
+                if (type == RECORD_ADD) {
+                    byte[] address = new byte[in.readUnsignedShort()];
+                    in.readFully(address);
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_JOB_SIZE) {
+                        break;
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    ByteBuffer body = ByteBuffer.allocate(2 + address.length + 4);
+                    body.putShort((short) address.length).put(address).putInt(data.length);
+                    mCrc.update(body.array(), 0, body.position());
+                    mCrc.update(data, 0, data.length);
+                    if (in.readInt() != (int) mCrc.getValue()) {
+                        break;
+                    }
+                    mPending.put(id, new Job(id, new String(address, "UTF-8"), data));
+                } else if (type == RECORD_DONE) {
+                    if (in.readInt() != (int) mCrc.getValue()) {
+                        break;
+                    }
+                    mPending.remove(id);
+                } else {
+                    break;
+                }
+                maxId = Math.max(maxId, id);
+            }
+        } catch (EOFException e) {
+            // End of journal, possibly in the middle of a torn record
+        } finally {
+            in.close();
+        }
+        mNextId = maxId + 1;
+        Log.i(TAG, "recovered " + mPending.size() + " pending jobs");
+    }
+
+    /**
+     * Write a fresh journal that holds only the pending jobs and open it
+     * for appending.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            for (Job job : mPending.values()) {
+                ByteBuffer record = addRecord(job);
+                record.flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("could not replace " + mFile);
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        mChannel.position(mChannel.size());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named set of printers that share the print jobs of one station.
+ * {@link BluetoothChatService#writeJob(PrinterGroup, CharSequence)} sends
+ * each job to the member with the shortest queue.
+ */
+public class PrinterGroup {
+
+    private final String mName;
+    private final List<String> mAddresses = new ArrayList<String>();
+
+    public PrinterGroup(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Add a printer to the group.
+     *
+     * @param address The address of the printer
+     * @return false if the printer was already a member
+     */
+    public synchronized boolean add(String address) {
+        if (mAddresses.contains(address)) {
+            return false;
+        }
+        return mAddresses.add(address);
+    }
+
+    public synchronized boolean remove(String address) {
+        return mAddresses.remove(address);
+    }
+
+    /**
+     * Return the addresses of the members, in the order they were added.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mAddresses);
+    }
+
+    public synchronized int size() {
+        return mAddresses.size();
+    }
+}
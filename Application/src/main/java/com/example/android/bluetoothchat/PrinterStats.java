@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A snapshot of the load on one printer connection.
+ */
+public final class PrinterStats {
+
+    public final String address;
+    /** Writes waiting for the writer thread. */
+    public final int queueDepth;
+    /** Jobs written on this connection. */
+    public final long jobs;
+    /** Bytes written on this connection. */
+    public final long bytes;
+    /** Recent time to write one job, smoothed, in milliseconds. */
+    public final double latencyMillis;
+    /** Bytes per second of time spent writing. */
+    public final long bytesPerSecond;
+
+    public PrinterStats(String address, int queueDepth, long jobs, long bytes,
+                        double latencyMillis, long bytesPerSecond) {
+        this.address = address;
+        this.queueDepth = queueDepth;
+        this.jobs = jobs;
+        this.bytes = bytes;
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.Random;
+
+/**
+ * How {@link BluetoothChatService} retries a printer connection that
+ * failed or was lost: the first retry is immediate, then the delay grows
+ * exponentially up to a maximum. Each delay is randomly shortened by up to
+ * the jitter fraction, so printers that dropped together do not all
+ * reconnect at the same moment.
+ */
+public final class ReconnectPolicy {
+
+    /**
+     * Retry up to 8 times, starting at 500 ms and doubling up to 30 s with
+     * 50% jitter, racing secure and insecure sockets.
+     */
+    public static final ReconnectPolicy DEFAULT =
+            new ReconnectPolicy(500, 30 * 1000, 2.0, 0.5, 8, true);
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final boolean mRaceSocketTypes;
+
+    /**
+     * @param initialDelayMillis Delay before the second retry
+     * @param maxDelayMillis     Longest delay between retries
+     * @param multiplier         Growth of the delay from one retry to the next
+     * @param jitter             Fraction of each delay that is random, 0 to 1
+     * @param maxAttempts        Retries before giving up, 0 for no limit
+     * @param raceSocketTypes    Connect a secure and an insecure socket at the
+     *                           same time and keep whichever connects first
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+                           double jitter, int maxAttempts, boolean raceSocketTypes) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("bad delays: " + initialDelayMillis
+                    + ", " + maxDelayMillis);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative: "
+                    + maxAttempts);
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mRaceSocketTypes = raceSocketTypes;
+    }
+
+    /**
+     * Return the delay before a retry.
+     *
+     * @param attempt The number of retries made so far
+     * @param random  The source of the jitter
+     */
+    public long getDelayMillis(int attempt, Random random) {
+        if (attempt == 0) {
+            return 0;
+        }
+        double delay = Math.min(mMaxDelayMillis,
+                mInitialDelayMillis * Math.pow(mMultiplier, attempt - 1));
+        return (long) (delay * (1 - mJitter * random.nextDouble()));
+    }
+
+    /**
+     * Return true if another retry is allowed after the given number.
+     */
+    public boolean canRetry(int attempt) {
+        return mMaxAttempts == 0 || attempt < mMaxAttempts;
+    }
+
+    public boolean isRaceSocketTypes() {
+        return mRaceSocketTypes;
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectPolicy{delay=" + mInitialDelayMillis + ".." + mMaxDelayMillis
+                + "ms x" + mMultiplier + ", jitter=" + mJitter + ", attempts=" + mMaxAttempts
+                + ", race=" + mRaceSocketTypes + "}";
+    }
+}
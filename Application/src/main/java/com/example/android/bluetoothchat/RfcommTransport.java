@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The default {@link Transport}: Bluetooth RFCOMM sockets on the Serial
+ * Port Profile UUID. Addresses are Bluetooth MAC addresses ("00:11:22:AA:BB:CC").
+ * <p>
+ * Connecting by UUID runs an SDP query to find the RFCOMM channel of the
+ * service first. The channel found is cached per device, and later
+ * connections to the device go straight to that channel. If that fails,
+ * for example because the printer was reconfigured, the connection falls
+ * back to the SDP query and the cache is refreshed. Going to a channel
+ * directly uses hidden BluetoothDevice methods through reflection; where
+ * they are missing every connection uses SDP.
+ */
+public class RfcommTransport implements Transport {
+    // Debugging
+    private static final String TAG = "RfcommTransport";
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+//    private static final UUID MY_UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+//    private static final UUID MY_UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    // Unique UUID for SPP application
+    private static final UUID MY_UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final UUID MY_UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Hidden API for connecting to a channel, looked up once
+    private static Method sCreateRfcommSocket;
+    private static Method sCreateInsecureRfcommSocket;
+    private static Field sPortField;
+
+    static {
+        try {
+            sCreateRfcommSocket = BluetoothDevice.class.getMethod("createRfcommSocket",
+                    int.class);
+            sCreateInsecureRfcommSocket = BluetoothDevice.class.getMethod(
+                    "createInsecureRfcommSocket", int.class);
+            sPortField = BluetoothSocket.class.getDeclaredField("mPort");
+            sPortField.setAccessible(true);
+        } catch (Exception e) {
+            Log.w(TAG, "RFCOMM channel fast path not available: " + e);
+            sCreateRfcommSocket = null;
+            sCreateInsecureRfcommSocket = null;
+            sPortField = null;
+        }
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final DeviceRegistry mRegistry;
+
+    // RFCOMM channel of each device, as found by the last SDP query
+    private final Map<MacAddress, Integer> mChannels = new HashMap<MacAddress, Integer>();
+    private int mChannelHits;
+    private int mChannelMisses;
+    private volatile ConnectListener mConnectListener;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this(new DeviceRegistry(adapter));
+    }
+
+    /**
+     * @param registry The devices, shared with the rest of the app so
+     *                 device objects and names are looked up once
+     */
+    public RfcommTransport(DeviceRegistry registry) {
+        mRegistry = registry;
+        mAdapter = registry.getAdapter();
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        MacAddress mac = MacAddress.tryParse(address);
+        if (mac == null) {
+            throw new IOException("not a Bluetooth address: " + address);
+        }
+        return new RfcommSocket(mac, mRegistry.getDevice(mac), secure);
+    }
+
+    /**
+     * Return the number of connections made on a cached channel.
+     */
+    public synchronized int getChannelCacheHits() {
+        return mChannelHits;
+    }
+
+    /**
+     * Return the number of connections that needed an SDP query, because
+     * no channel was cached or the cached channel did not connect.
+     */
+    public synchronized int getChannelCacheMisses() {
+        return mChannelMisses;
+    }
+
+    /**
+     * Forget the cached channels, so the next connections query SDP.
+     */
+    public synchronized void clearChannelCache() {
+        mChannels.clear();
+    }
+
+    private synchronized Integer getChannel(MacAddress address) {
+        return mChannels.get(address);
+    }
+
+    private synchronized void putChannel(MacAddress address, int channel) {
+        if (channel > 0) {
+            mChannels.put(address, channel);
+        } else {
+            mChannels.remove(address);
+        }
+    }
+
+    private synchronized void recordLookup(boolean hit) {
+        if (hit) {
+            mChannelHits++;
+        } else {
+            mChannelMisses++;
+        }
+        Log.d(TAG, "channel cache hits: " + mChannelHits + " misses: " + mChannelMisses);
+    }
+
+    /**
+     * Create a socket that connects straight to a channel, or return null
+     * if the hidden API is not available.
+     */
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel,
+                                                       boolean secure) {
+        Method method = secure ? sCreateRfcommSocket : sCreateInsecureRfcommSocket;
+        if (method == null) {
+            return null;
+        }
+        try {
+            return (BluetoothSocket) method.invoke(device, channel);
+        } catch (Exception e) {
+            Log.w(TAG, "createRfcommSocket(" + channel + ") failed: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Return the channel a connected socket is on, or -1 if it is not known.
+     */
+    private static int getPort(BluetoothSocket socket) {
+        if (sPortField == null) {
+            return -1;
+        }
+        try {
+            return sPortField.getInt(socket);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    private static BluetoothSocket createServiceSocket(BluetoothDevice device, boolean secure)
+            throws IOException {
+        if (secure) {
+            return device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            return device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+    }
+
+    @Override
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new RfcommServerSocket(serverSocket);
+    }
+
+    @Override
+    public void prepareConnect() {
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+    }
+
+    @Override
+    public void setConnectListener(ConnectListener listener) {
+        mConnectListener = listener;
+    }
+
+    private void record(MacAddress address, ConnectTimings.Phase phase, long start) {
+        ConnectListener listener = mConnectListener;
+        if (listener != null) {
+            listener.record(address.toString(), phase, System.nanoTime() - start);
+        }
+    }
+
+    private class RfcommSocket implements TransportSocket {
+        private final MacAddress mAddress;
+        private final BluetoothDevice mDevice;
+        private final boolean mSecure;
+        private volatile BluetoothSocket mSocket;
+        private volatile boolean mClosed;
+
+        // An outgoing socket, created when it connects
+        RfcommSocket(MacAddress address, BluetoothDevice device, boolean secure) {
+            mAddress = address;
+            mDevice = device;
+            mSecure = secure;
+        }
+
+        // An accepted socket, already connected
+        RfcommSocket(BluetoothSocket socket, BluetoothDevice device) {
+            mAddress = mRegistry.put(device, null);
+            mDevice = device;
+            mSecure = true;
+            mSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            MacAddress address = mAddress;
+            Integer channel = getChannel(address);
+            if (channel != null) {
+                // Fast path: the cached channel, without an SDP query
+                long start = System.nanoTime();
+                BluetoothSocket socket = createChannelSocket(mDevice, channel, mSecure);
+                record(address, ConnectTimings.Phase.LOOKUP, start);
+                if (socket != null) {
+                    try {
+                        open(socket);
+                        recordLookup(true);
+                        return;
+                    } catch (IOException e) {
+                        if (mClosed) {
+                            throw e;
+                        }
+                        Log.d(TAG, "cached channel " + channel + " of " + address
+                                + " failed, querying SDP");
+                    }
+                }
+            }
+            recordLookup(false);
+            long start = System.nanoTime();
+            BluetoothSocket socket = createServiceSocket(mDevice, mSecure);
+            record(address, ConnectTimings.Phase.LOOKUP, start);
+            try {
+                open(socket);
+            } catch (IOException e) {
+                putChannel(address, -1);
+                throw e;
+            }
+            putChannel(address, getPort(socket));
+        }
+
+        /**
+         * Connect the socket, unless close() has been called; a close()
+         * from another thread while connecting makes connect() fail.
+         */
+        private void open(BluetoothSocket socket) throws IOException {
+            mSocket = socket;
+            if (mClosed) {
+                socket.close();
+                throw new IOException("socket closed");
+            }
+            long start = System.nanoTime();
+            try {
+                socket.connect();
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    // Already failed
+                }
+                throw e;
+            }
+            record(mAddress, ConnectTimings.Phase.CONNECT, start);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress.toString();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRegistry.getName(mAddress);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            BluetoothSocket socket = mSocket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private class RfcommServerSocket implements TransportServerSocket {
+        private final BluetoothServerSocket mServerSocket;
+
+        RfcommServerSocket(BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            BluetoothSocket socket = mServerSocket.accept();
+            return new RfcommSocket(socket, socket.getRemoteDevice());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A microbenchmark of {@link ScanClassifier} against the regular
+ * expressions it replaced, over a mix of scans like those of the label
+ * screen. Small enough to run from a maintenance command.
+ */
+public final class ScanBenchmark {
+
+    private static final String[] SCANS = {
+            "", "1", "12", "250", "1000",
+            "001122AABBCC", "001122aabbcc", "00:11:22:AA:BB:CC",
+            "ABC-12345", "PN4711", "GRP:LINE1", "#TIME",
+            "]C101095011010209171719050810ABCD1234",
+    };
+
+    private static final Pattern QTY = Pattern.compile("^\\d{1,3}$");
+    private static final Pattern MAC = Pattern.compile("^[0-9A-F]{12}$");
+
+    // Keeps the results alive so the loops are not optimized away
+    private static volatile int sSink;
+
+    private ScanBenchmark() {
+    }
+
+    /**
+     * Classify {@code rounds} passes over the sample scans three ways and
+     * return one line per way with the average time per scan.
+     */
+    public static List<String> run(ScanClassifier classifier, int rounds) {
+        // Warm up each path once before timing it
+        classifier(classifier, rounds / 10 + 1);
+        compiledRegex(rounds / 10 + 1);
+        regex(rounds / 10 + 1);
+
+        int scans = rounds * SCANS.length;
+        List<String> lines = new ArrayList<String>();
+        lines.add(describe("classifier", classifier(classifier, rounds), scans));
+        lines.add(describe("regex, precompiled", compiledRegex(rounds), scans));
+        lines.add(describe("regex, compiled per scan", regex(rounds), scans));
+        return lines;
+    }
+
+    private static long classifier(ScanClassifier classifier, int rounds) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String scan : SCANS) {
+                sink += classifier.classify(scan).ordinal();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        sSink = sink;
+        return nanos;
+    }
+
+    private static long compiledRegex(int rounds) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String scan : SCANS) {
+                if (QTY.matcher(scan).find()) {
+                    sink += 1;
+                } else if (MAC.matcher(scan).find()) {
+                    sink += 2;
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        sSink = sink;
+        return nanos;
+    }
+
+    // What the label screen did before ScanClassifier
+    private static long regex(int rounds) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String scan : SCANS) {
+                if (Pattern.compile("^\\d{1,3}$").matcher(scan).find()) {
+                    sink += 1;
+                } else if (Pattern.compile("^[0-9A-F]{12}$").matcher(scan).find()) {
+                    sink += 2;
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        sSink = sink;
+        return nanos;
+    }
+
+    private static String describe(String name, long nanos, int scans) {
+        return name + ": " + (nanos / scans) + "ns/scan";
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+
+/**
+ * Collects the key events of a keyboard wedge scanner straight from the
+ * activity, so a scan does not go through the EditText, with a layout and
+ * redraw for every character, before it is seen.
+ * <p>
+ * Characters go into a buffer allocated once. The scan is handed to the
+ * {@link Listener} when the terminator key (Enter or Tab) comes, or when
+ * no key has come for the inter-key timeout, for scanners that send no
+ * terminator. Keys that type no character, such as Back, are not taken.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class ScanCapture {
+
+    /**
+     * Receives complete scans.
+     */
+    public interface Listener {
+        /**
+         * @param scan The characters of the scan, without the terminator
+         */
+        void onScan(String scan);
+    }
+
+    /**
+     * Longest scan kept; characters after it are dropped
+     */
+    public static final int MAX_SCAN_LENGTH = 256;
+
+    private final Listener mListener;
+    private final long mInterKeyTimeoutMillis;
+    private final Handler mHandler = new Handler();
+    private final char[] mBuffer = new char[MAX_SCAN_LENGTH];
+    private int mLength;
+    private boolean mEnabled;
+
+    // Event time (uptime) of the first and the last key of the scan
+    private long mFirstKeyMillis;
+    private long mLastKeyMillis;
+
+    /**
+     * Time from the last key of a scan to its dispatch
+     */
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+
+    /**
+     * Time from the first key to the last key of a scan
+     */
+    private final LatencyHistogram mBurstDuration = new LatencyHistogram();
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param listener             Receives the scans
+     * @param interKeyTimeoutMillis A scan ends after this long with no key
+     */
+    public ScanCapture(Listener listener, long interKeyTimeoutMillis) {
+        mListener = listener;
+        mInterKeyTimeoutMillis = interKeyTimeoutMillis;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (!enabled) {
+            mHandler.removeCallbacks(mTimeout);
+            mLength = 0;
+        }
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Offer a key event to the capture, from {@code Activity.dispatchKeyEvent}.
+     *
+     * @return true if the event was taken and must not be dispatched further
+     */
+    public boolean onKeyEvent(KeyEvent event) {
+        if (!mEnabled) {
+            return false;
+        }
+        int keyCode = event.getKeyCode();
+        int action = event.getAction();
+        if (keyCode == KeyEvent.KEYCODE_ENTER || keyCode == KeyEvent.KEYCODE_NUMPAD_ENTER
+                || keyCode == KeyEvent.KEYCODE_TAB) {
+            if (action == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0) {
+                mLastKeyMillis = event.getEventTime();
+                dispatch();
+            }
+            return true;
+        }
+        if (action == KeyEvent.ACTION_MULTIPLE && keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+            // Some scanners send a whole scan as one event
+            String characters = event.getCharacters();
+            if (characters == null) {
+                return false;
+            }
+            for (int i = 0; i < characters.length(); i++) {
+                append(characters.charAt(i), event.getEventTime());
+            }
+            return true;
+        }
+        int c = event.getUnicodeChar();
+        // A dead key has the accent it adds to the next key, with a flag
+        // bit set; it is not a character and is left to the view
+        if (c == 0 || (c & KeyCharacterMap.COMBINING_ACCENT) != 0 || Character.isISOControl(c)) {
+            return false;
+        }
+        if (action == KeyEvent.ACTION_DOWN) {
+            append((char) c, event.getEventTime());
+        }
+        return true;
+    }
+
+    private void append(char c, long eventTime) {
+        if (mLength == 0) {
+            mFirstKeyMillis = eventTime;
+        }
+        if (mLength < MAX_SCAN_LENGTH) {
+            mBuffer[mLength++] = c;
+        }
+        mLastKeyMillis = eventTime;
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.postDelayed(mTimeout, mInterKeyTimeoutMillis);
+    }
+
+    private void dispatch() {
+        mHandler.removeCallbacks(mTimeout);
+        if (mLength == 0) {
+            // A terminator alone is an empty scan, which means a quantity of one
+            mFirstKeyMillis = mLastKeyMillis;
+        }
+        String scan = new String(mBuffer, 0, mLength);
+        mLength = 0;
+        mListener.onScan(scan);
+        long now = SystemClock.uptimeMillis();
+        mDispatchLatency.record((now - mLastKeyMillis) * 1000000L);
+        mBurstDuration.record((mLastKeyMillis - mFirstKeyMillis) * 1000000L);
+    }
+
+    /**
+     * Return a snapshot of the time from the last key of a scan, or its
+     * terminator, to the listener returning. Scans ended by the timeout
+     * include the timeout.
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency.snapshot();
+    }
+
+    /**
+     * Return a snapshot of the time the scanner took to type each scan.
+     */
+    public LatencyHistogram getBurstDuration() {
+        return mBurstDuration.snapshot();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.List;
+
+/**
+ * Tells what kind of barcode a scan is: a quantity, a printer address, a
+ * maintenance command, a part number and so on.
+ * <p>
+ * The scan is walked once to collect its length and the classes of its
+ * characters, then the rules are tried in the order they were added, and
+ * the first one that matches wins. Nothing is compiled or allocated per
+ * scan, so a burst from the scanner costs a few hundred nanoseconds each.
+ * A scan no rule matches is {@link Kind#PART}.
+ */
+public final class ScanClassifier {
+
+    /**
+     * What a scan is.
+     */
+    public enum Kind {
+        /** Number of labels to print; an empty scan means one. */
+        QUANTITY,
+        /** Bluetooth address of a printer, as 12 hex digits. */
+        PRINTER,
+        /** A maintenance command such as "#TIME". */
+        COMMAND,
+        /** A printer group, "GRP:" followed by its name. */
+        GROUP,
+        /** A run of serial labels, "RUN:" followed by the number of labels. */
+        RUN,
+        /** A GS1 barcode with application identifiers. */
+        GS1,
+        /** Anything else is a part number. */
+        PART
+    }
+
+    // Character classes seen in a scan
+    static final int DIGIT = 1;
+    static final int UPPER_HEX = 1 << 1;
+    static final int LOWER_HEX = 1 << 2;
+    static final int LETTER = 1 << 3;
+    static final int GS = 1 << 4;
+    static final int OTHER = 1 << 5;
+
+    /**
+     * The group separator, which stands for FNC1 inside GS1 barcodes.
+     */
+    static final char GROUP_SEPARATOR = '\u001D';
+
+    private static final byte[] ASCII_CLASSES = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            int cls;
+            if (c >= '0' && c <= '9') {
+                cls = DIGIT;
+            } else if (c >= 'A' && c <= 'F') {
+                cls = UPPER_HEX;
+            } else if (c >= 'a' && c <= 'f') {
+                cls = LOWER_HEX;
+            } else if ((c >= 'G' && c <= 'Z') || (c >= 'g' && c <= 'z')) {
+                cls = LETTER;
+            } else if (c == GROUP_SEPARATOR) {
+                cls = GS;
+            } else {
+                cls = OTHER;
+            }
+            ASCII_CLASSES[c] = (byte) cls;
+        }
+    }
+
+    /**
+     * One test of a scan. Rules see the scan with the classes of all its
+     * characters already OR'ed into {@code classes}.
+     */
+    public abstract static class Rule {
+        final Kind mKind;
+
+        Rule(Kind kind) {
+            mKind = kind;
+        }
+
+        public Kind getKind() {
+            return mKind;
+        }
+
+        abstract boolean matches(CharSequence s, int start, int end, int classes);
+    }
+
+    /**
+     * Match scans of only the given character classes, with a length in
+     * the given range.
+     */
+    private static final class ClassRule extends Rule {
+        private final int mAllowed;
+        private final int mMinLength;
+        private final int mMaxLength;
+
+        ClassRule(Kind kind, int allowed, int minLength, int maxLength) {
+            super(kind);
+            mAllowed = allowed;
+            mMinLength = minLength;
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        boolean matches(CharSequence s, int start, int end, int classes) {
+            int length = end - start;
+            return length >= mMinLength && length <= mMaxLength && (classes & ~mAllowed) == 0;
+        }
+    }
+
+    /**
+     * Match scans that start with, or are exactly, one of a set of strings.
+     */
+    private static final class TextRule extends Rule {
+        private final String[] mTexts;
+        private final boolean mPrefix;
+
+        TextRule(Kind kind, boolean prefix, String... texts) {
+            super(kind);
+            mTexts = texts.clone();
+            mPrefix = prefix;
+        }
+
+        @Override
+        boolean matches(CharSequence s, int start, int end, int classes) {
+            for (String text : mTexts) {
+                int length = text.length();
+                if (mPrefix ? end - start < length : end - start != length) {
+                    continue;
+                }
+                int i = 0;
+                while (i < length && s.charAt(start + i) == text.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Match GS1 barcodes: those the scanner prefixes with a GS1 symbology
+     * identifier, and those that carry FNC1 as a group separator.
+     */
+    private static final class Gs1Rule extends Rule {
+        // GS1-128, GS1 DataMatrix, GS1 QR Code and GS1 DataBar
+        private final TextRule mIdentifiers =
+                new TextRule(Kind.GS1, true, "]C1", "]d2", "]Q3", "]e0");
+
+        Gs1Rule(Kind kind) {
+            super(kind);
+        }
+
+        @Override
+        boolean matches(CharSequence s, int start, int end, int classes) {
+            return (classes & GS) != 0 || mIdentifiers.matches(s, start, end, classes);
+        }
+    }
+
+    /**
+     * Match scans of {@code minDigits} to {@code maxDigits} decimal digits.
+     */
+    public static Rule digits(Kind kind, int minDigits, int maxDigits) {
+        return new ClassRule(kind, DIGIT, minDigits, maxDigits);
+    }
+
+    /**
+     * Match scans of exactly {@code digits} upper case hex digits.
+     */
+    public static Rule upperHex(Kind kind, int digits) {
+        return new ClassRule(kind, DIGIT | UPPER_HEX, digits, digits);
+    }
+
+    /**
+     * Match scans that start with one of the prefixes.
+     */
+    public static Rule prefix(Kind kind, String... prefixes) {
+        return new TextRule(kind, true, prefixes);
+    }
+
+    /**
+     * Match scans that are exactly one of the texts.
+     */
+    public static Rule exact(Kind kind, String... texts) {
+        return new TextRule(kind, false, texts);
+    }
+
+    /**
+     * Match GS1 barcodes, by symbology identifier or FNC1 separator.
+     */
+    public static Rule gs1(Kind kind) {
+        return new Gs1Rule(kind);
+    }
+
+    private final Rule[] mRules;
+
+    public ScanClassifier(List<Rule> rules) {
+        mRules = rules.toArray(new Rule[rules.size()]);
+    }
+
+    public Kind classify(CharSequence s) {
+        return classify(s, 0, s.length());
+    }
+
+    /**
+     * Classify {@code s[start, end)}.
+     */
+    public Kind classify(CharSequence s, int start, int end) {
+        int classes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            classes |= c < 128 ? ASCII_CLASSES[c] : OTHER;
+        }
+        for (Rule rule : mRules) {
+            if (rule.matches(s, start, end, classes)) {
+                return rule.mKind;
+            }
+        }
+        return Kind.PART;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A run of serially numbered labels larger than one print job can hold,
+ * split into consecutive jobs of at most {@link #MAX_LABELS_PER_JOB}
+ * labels, each starting its serial number where the one before ended.
+ * <p>
+ * The printer does not report when a job has printed, only the socket
+ * tells when its bytes were written, and a printer buffers whole jobs.
+ * So a written job is taken as printed once the printer could have
+ * printed its labels at an estimated time per label, after the jobs
+ * written to the same printer before it. Jobs are handed out by
+ * {@link #next()} while fewer than the window are sent but not estimated
+ * printed, so the printer has the next job queued behind the one it is
+ * printing without the whole run being queued at once.
+ * <p>
+ * A cancelled run hands out no more jobs. The jobs already written still
+ * print; only the jobs not yet handed out are dropped.
+ * <p>
+ * Not thread safe; the label screen drives it from the main thread.
+ */
+public class SerialRun {
+
+    /**
+     * Most labels in one job: the quantity field of the printer has three digits
+     */
+    public static final int MAX_LABELS_PER_JOB = 999;
+
+    /**
+     * One job of the run.
+     */
+    public static final class Chunk {
+        /** Serial number of the first label, from 1. */
+        public final int first;
+        /** Number of labels. */
+        public final int count;
+
+        Chunk(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        public int getLast() {
+            return first + count - 1;
+        }
+    }
+
+    /**
+     * A written job and when it is estimated to have printed.
+     */
+    private static final class Written {
+        final Chunk chunk;
+        final long printedAt;
+
+        Written(Chunk chunk, long printedAt) {
+            this.chunk = chunk;
+            this.printedAt = printedAt;
+        }
+    }
+
+    private final int mTotal;
+    private final int mJobSize;
+    private final int mWindow;
+    private final long mMillisPerLabel;
+    private int mSent;
+    private int mWritten;
+    private int mPrinted;
+    private int mJobsSent;
+    private int mJobsWritten;
+    private int mJobsPrinted;
+    private boolean mCancelled;
+    // Jobs sent and not yet written, by the id they are reported with
+    private final Map<Long, Chunk> mUnwritten = new HashMap<Long, Chunk>();
+    // When each printer is estimated to have printed what it was given
+    private final Map<String, Long> mBusyUntil = new HashMap<String, Long>();
+    private final List<Written> mPrinting = new ArrayList<Written>();
+
+    /**
+     * @param total          The number of labels of the run
+     * @param window         The most jobs sent but not yet estimated printed
+     * @param millisPerLabel The estimated time the printer takes for a label
+     */
+    public SerialRun(int total, int window, long millisPerLabel) {
+        this(total, MAX_LABELS_PER_JOB, window, millisPerLabel);
+    }
+
+    public SerialRun(int total, int jobSize, int window, long millisPerLabel) {
+        if (total <= 0 || jobSize <= 0 || window <= 0 || millisPerLabel < 0) {
+            throw new IllegalArgumentException(
+                    "total, jobSize and window must be positive, millisPerLabel not negative");
+        }
+        mTotal = total;
+        mJobSize = jobSize;
+        mWindow = window;
+        mMillisPerLabel = millisPerLabel;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public int getJobCount() {
+        return (mTotal + mJobSize - 1) / mJobSize;
+    }
+
+    /**
+     * Return the number of digits of the serial numbers: as many as the
+     * total has, and at least three.
+     */
+    public int getSerialDigits() {
+        return serialDigits(mTotal);
+    }
+
+    /**
+     * Return true if the next job may be sent now.
+     */
+    public boolean canSend() {
+        return !mCancelled && mSent < mTotal && mJobsSent - mJobsPrinted < mWindow;
+    }
+
+    /**
+     * Take the next job to send. Once it is sent, pass it to
+     * {@link #sent(Chunk, long)}, or to {@link #failed(Chunk)} if it
+     * could not be.
+     *
+     * @throws IllegalStateException if {@link #canSend()} is false
+     */
+    public Chunk next() {
+        if (!canSend()) {
+            throw new IllegalStateException("no job can be sent now");
+        }
+        Chunk chunk = new Chunk(mSent + 1, Math.min(mJobSize, mTotal - mSent));
+        mSent += chunk.count;
+        mJobsSent++;
+        return chunk;
+    }
+
+    /**
+     * Record the id a job from {@link #next()} was sent with, which is
+     * reported when it has been written.
+     *
+     * @see BluetoothChatService#submitJob(String, LabelTemplate.Job)
+     */
+    public void sent(Chunk chunk, long jobId) {
+        mUnwritten.put(jobId, chunk);
+    }
+
+    /**
+     * Give back a job from {@link #next()} that could not be sent. The run
+     * is cancelled, as the jobs after it would leave a gap in the serials.
+     */
+    public void failed(Chunk chunk) {
+        mSent -= chunk.count;
+        mJobsSent--;
+        mCancelled = true;
+    }
+
+    /**
+     * Count a job as written, and estimate when it will have printed. Jobs
+     * that are not of the run, such as spooled jobs sent again when a
+     * printer reconnects, are ignored.
+     *
+     * @param printer The address the job was written to
+     * @param jobId   The id the job was reported with
+     * @param now     The current time, in the clock of {@link #updatePrinted(long)}
+     * @return The time the job is estimated to have printed, or -1 if the
+     * job is not one of the run
+     */
+    public long onJobWritten(String printer, long jobId, long now) {
+        Chunk chunk = mUnwritten.remove(jobId);
+        if (chunk == null) {
+            return -1;
+        }
+        mJobsWritten++;
+        mWritten += chunk.count;
+        Long busyUntil = mBusyUntil.get(printer);
+        long start = busyUntil != null ? Math.max(now, busyUntil) : now;
+        long printedAt = start + chunk.count * mMillisPerLabel;
+        mBusyUntil.put(printer, printedAt);
+        mPrinting.add(new Written(chunk, printedAt));
+        return printedAt;
+    }
+
+    /**
+     * Count the written jobs estimated to have printed by {@code now},
+     * which opens the window for more.
+     *
+     * @return true if any were
+     */
+    public boolean updatePrinted(long now) {
+        boolean any = false;
+        for (Iterator<Written> it = mPrinting.iterator(); it.hasNext(); ) {
+            Written w = it.next();
+            if (w.printedAt <= now) {
+                it.remove();
+                mJobsPrinted++;
+                mPrinted += w.chunk.count;
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Return the number of labels of the jobs sent so far.
+     */
+    public int getSent() {
+        return mSent;
+    }
+
+    /**
+     * Return the number of labels of the jobs written so far.
+     */
+    public int getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * Return the number of labels estimated to have printed so far.
+     */
+    public int getPrinted() {
+        return mPrinted;
+    }
+
+    /**
+     * Return true once the run is over: every label is estimated printed,
+     * or the run is cancelled and every job sent has been written, after
+     * which there is nothing left to stop.
+     */
+    public boolean isFinished() {
+        if (mCancelled) {
+            return mJobsWritten == mJobsSent;
+        }
+        return mSent == mTotal && mJobsPrinted == mJobsSent;
+    }
+
+    /**
+     * Return the number of digits of serial numbers up to {@code total}.
+     */
+    public static int serialDigits(int total) {
+        int digits = 3;
+        for (long limit = 1000; total >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Format a serial number with leading zeros.
+     */
+    public static String formatSerial(int serial, int digits) {
+        StringBuilder s = new StringBuilder(digits);
+        String value = Integer.toString(serial);
+        for (int i = value.length(); i < digits; i++) {
+            s.append('0');
+        }
+        return s.append(value).toString();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Receives what {@link BluetoothChatService} reports, on the service thread
+ * that reports it. {@link HandlerCallback} passes each event on to the UI
+ * Handler as the message of the same name in {@link Constants}; other
+ * implementations let the service run without android.os, for example in
+ * {@link LoopbackBenchmark} on a development machine.
+ */
+public interface ServiceCallback {
+
+    /**
+     * The connection state changed, to one of the STATE_ constants of the service.
+     */
+    void onStateChange(int state);
+
+    /**
+     * Bytes were read from an inbound session.
+     *
+     * @param address The address of the session
+     * @param data    A copy of the bytes, owned by the callback
+     */
+    void onRead(String address, byte[] data);
+
+    /**
+     * A write that is not a job was sent to the socket.
+     */
+    void onWrite(int length);
+
+    /**
+     * A whole job was sent to the socket of a printer.
+     *
+     * @param address The address of the printer
+     * @param jobId   The id {@link BluetoothChatService#submitJob} returned for the job
+     * @param length  The number of bytes of the job
+     * @param flushes The number of flushes it took
+     */
+    void onJobWritten(String address, long jobId, int length, int flushes);
+
+    /**
+     * A connection was made to the named device.
+     */
+    void onDeviceName(String name);
+
+    /**
+     * Something went wrong that the user should be told about.
+     */
+    void onToast(String text);
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads of {@link BluetoothChatService}. Every accept, connect,
+ * read and write loop runs as a named task on one bounded pool, so a
+ * start/connect cycle reuses idle threads instead of creating new ones.
+ * Idle threads exit after a while. The running tasks are tracked by name,
+ * so a loop that never ends shows up in {@link #getRunningTasks()}.
+ */
+public class ServiceExecutor {
+    // Debugging
+    private static final String TAG = "ServiceExecutor";
+
+    // How long an idle thread waits for another task before it exits
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String mName;
+    private final ThreadPoolExecutor mPool;
+    private final List<String> mRunning = new ArrayList<String>();
+    private int mCreatedThreads;
+
+    /**
+     * @param name       Prefix of the thread names
+     * @param maxThreads Most threads that may run at once
+     */
+    public ServiceExecutor(String name, int maxThreads) {
+        mName = name;
+        mPool = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, mName + "-" + onThreadCreated());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run a task on an idle thread, or on a new one if none is idle. The
+     * thread carries the name of the task while it runs.
+     *
+     * @param name The name of the task
+     * @param task The task
+     * @return false if all threads are busy
+     */
+    public boolean execute(final String name, final Runnable task) {
+        try {
+            mPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    String poolName = thread.getName();
+                    thread.setName(name);
+                    onTaskStarted(name);
+                    try {
+                        task.run();
+                    } finally {
+                        onTaskFinished(name);
+                        thread.setName(poolName);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "no thread for " + name + ", running: " + getRunningTasks());
+            return false;
+        }
+    }
+
+    /**
+     * Change the most threads that may run at once.
+     */
+    public void setMaxThreads(int maxThreads) {
+        mPool.setMaximumPoolSize(maxThreads);
+    }
+
+    /**
+     * Return the number of threads alive in the pool, busy or idle.
+     */
+    public int getLiveThreadCount() {
+        return mPool.getPoolSize();
+    }
+
+    /**
+     * Return the number of threads created since the pool was made.
+     */
+    public synchronized int getCreatedThreadCount() {
+        return mCreatedThreads;
+    }
+
+    /**
+     * Return the names of the tasks that are running.
+     */
+    public synchronized List<String> getRunningTasks() {
+        return new ArrayList<String>(mRunning);
+    }
+
+    private synchronized int onThreadCreated() {
+        return ++mCreatedThreads;
+    }
+
+    private synchronized void onTaskStarted(String name) {
+        mRunning.add(name);
+    }
+
+    private synchronized void onTaskFinished(String name) {
+        mRunning.remove(name);
+    }
+}
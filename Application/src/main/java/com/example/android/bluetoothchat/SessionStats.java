@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A snapshot of the traffic on one inbound session of a service in
+ * server mode.
+ */
+public final class SessionStats {
+
+    public final String address;
+    /** Time since the session was accepted, in milliseconds. */
+    public final long durationMillis;
+    /** Bytes received from the peer. */
+    public final long bytesRead;
+    /** Bytes sent to the peer. */
+    public final long bytesWritten;
+    /** Bytes received per second over the life of the session. */
+    public final long readBytesPerSecond;
+    /** Bytes sent per second over the life of the session. */
+    public final long writeBytesPerSecond;
+
+    public SessionStats(String address, long durationMillis, long bytesRead,
+                        long bytesWritten) {
+        this.address = address;
+        this.durationMillis = durationMillis;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        long millis = Math.max(1, durationMillis);
+        this.readBytesPerSecond = bytesRead * 1000 / millis;
+        this.writeBytesPerSecond = bytesWritten * 1000 / millis;
+    }
+}
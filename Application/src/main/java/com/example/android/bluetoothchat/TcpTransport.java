@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} over plain TCP, used to drive and benchmark the
+ * connect and write path without a phone or a printer, for example against
+ * a loopback listener on a development machine.
+ * <p>
+ * Addresses are "host:port", or just "host" to use the default port. An
+ * IPv6 host is written in brackets, "[::1]:9100" or "[::1]"; a bare IPv6
+ * address with no brackets is taken as a host on the default port. The
+ * secure server socket listens on the default port and the insecure one on
+ * the port after it.
+ */
+public class TcpTransport implements Transport {
+
+    // Default port, the same as the raw printing port of most network printers
+    public static final int DEFAULT_PORT = 9100;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final String mBindHost;
+    private final int mPort;
+    private volatile ConnectListener mConnectListener;
+
+    /**
+     * Create a transport that listens on loopback only.
+     *
+     * @param port The default port for connecting and the secure listening port
+     */
+    public TcpTransport(int port) {
+        this("127.0.0.1", port);
+    }
+
+    /**
+     * @param bindHost The local address the server sockets listen on
+     * @param port     The default port for connecting and the secure listening port
+     */
+    public TcpTransport(String bindHost, int port) {
+        mBindHost = bindHost;
+        mPort = port;
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        String host = address;
+        String port = null;
+        if (address.startsWith("[")) {
+            int close = address.indexOf(']');
+            if (close < 0 || (close + 1 < address.length() && address.charAt(close + 1) != ':')) {
+                throw new IOException("bad address: " + address);
+            }
+            host = address.substring(1, close);
+            if (close + 1 < address.length()) {
+                port = address.substring(close + 2);
+            }
+        } else {
+            int colon = address.indexOf(':');
+            // More than one colon is an IPv6 address without a port
+            if (colon >= 0 && colon == address.lastIndexOf(':')) {
+                host = address.substring(0, colon);
+                port = address.substring(colon + 1);
+            }
+        }
+        int portNumber = mPort;
+        if (port != null) {
+            try {
+                portNumber = Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad port in address: " + address);
+            }
+        }
+        // Resolved in connect(), which runs on the connecting thread
+        return new TcpSocket(new Socket(), InetSocketAddress.createUnresolved(host, portNumber),
+                address, mConnectListener);
+    }
+
+    /**
+     * Return the address of a host and port in the form {@link #createSocket}
+     * takes, with an IPv6 host in brackets.
+     */
+    public static String formatAddress(String host, int port) {
+        if (host.indexOf(':') >= 0) {
+            return "[" + host + "]:" + port;
+        }
+        return host + ":" + port;
+    }
+
+    @Override
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindHost, secure ? mPort : mPort + 1));
+        return new TcpServerSocket(serverSocket);
+    }
+
+    @Override
+    public void prepareConnect() {
+        // Nothing to cancel for TCP
+    }
+
+    @Override
+    public void setConnectListener(ConnectListener listener) {
+        mConnectListener = listener;
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private final Socket mSocket;
+        private final InetSocketAddress mRemote;
+        private final String mAddress;
+        private final ConnectListener mListener;
+
+        TcpSocket(Socket socket, InetSocketAddress remote, String address,
+                  ConnectListener listener) {
+            mSocket = socket;
+            mRemote = remote;
+            mAddress = address;
+            mListener = listener;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            long start = System.nanoTime();
+            InetSocketAddress remote = mRemote;
+            if (remote.isUnresolved()) {
+                remote = new InetSocketAddress(remote.getHostName(), remote.getPort());
+                if (remote.isUnresolved()) {
+                    throw new IOException("unknown host: " + remote.getHostName());
+                }
+            }
+            record(ConnectTimings.Phase.LOOKUP, start);
+            mSocket.setTcpNoDelay(true);
+            start = System.nanoTime();
+            mSocket.connect(remote, CONNECT_TIMEOUT_MS);
+            record(ConnectTimings.Phase.CONNECT, start);
+        }
+
+        private void record(ConnectTimings.Phase phase, long start) {
+            if (mListener != null) {
+                mListener.record(mAddress, phase, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    private static class TcpServerSocket implements TransportServerSocket {
+        private final ServerSocket mServerSocket;
+
+        TcpServerSocket(ServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            String address = formatAddress(remote.getAddress().getHostAddress(), remote.getPort());
+            // Already connected, so there is nothing to time
+            return new TcpSocket(socket, remote, address, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+}
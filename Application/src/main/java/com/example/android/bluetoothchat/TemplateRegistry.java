@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import android.os.FileObserver;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The label templates of each printer, loaded from a directory on device
+ * storage and compiled once. A file is chosen by its name:
+ * <ul>
+ * <li>{@code 001122AABBCC.txt} (or the colon form): the printer with that address</li>
+ * <li>{@code default.txt}: printers no other file matches</li>
+ * <li>any other name: printers whose Bluetooth name starts with it, the
+ * longest match winning, so {@code DaVinci.txt} serves every model
+ * named "DaVinci..."</li>
+ * </ul>
+ * Printers no file matches get the built-in template.
+ * <p>
+ * The directory is watched, and a file that is written, moved in or
+ * deleted is reloaded on the watcher's thread. {@link #get} only reads
+ * the maps of compiled templates, which are replaced whole on a reload,
+ * so the print path never waits for a file or parses one. A file that
+ * doesn't compile is logged and the template loaded before it is kept.
+ */
+public class TemplateRegistry {
+
+    private static final String TAG = "TemplateRegistry";
+
+    private static final String SUFFIX = ".txt";
+    private static final String DEFAULT_NAME = "default";
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    /**
+     * Told about every template file loaded or removed, on the thread that did it.
+     */
+    public interface Listener {
+        /**
+         * @param file  The template file
+         * @param error Why it could not be loaded, or null if it was
+         */
+        void onTemplateLoaded(File file, Exception error);
+    }
+
+    private final File mDir;
+    private final Charset mCharset;
+    private final LabelTemplate mBuiltIn;
+    private final FileObserver mObserver;
+    private volatile Listener mListener;
+
+    // Replaced whole on every change; never modified after being published
+    private volatile Map<MacAddress, LabelTemplate> mByAddress =
+            Collections.<MacAddress, LabelTemplate>emptyMap();
+    private volatile Map<String, LabelTemplate> mByModel =
+            Collections.<String, LabelTemplate>emptyMap();
+
+    /**
+     * @param dir     The directory of template files
+     * @param charset The encoding of the files, and of the labels
+     * @param builtIn The template of printers no file matches
+     */
+    public TemplateRegistry(File dir, Charset charset, LabelTemplate builtIn) {
+        mDir = dir;
+        mCharset = charset;
+        mBuiltIn = builtIn;
+        mObserver = new FileObserver(dir.getPath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path != null && path.endsWith(SUFFIX)) {
+                    reload(new File(mDir, path));
+                }
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Load every template file of the directory, then watch it for changes.
+     * Call on a background thread.
+     */
+    public void start() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "no template directory " + mDir);
+            return;
+        }
+        mObserver.startWatching();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    reload(file);
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        mObserver.stopWatching();
+    }
+
+    /**
+     * Return the template of a printer.
+     *
+     * @param address The address of the printer, or null if unknown
+     * @param name    The Bluetooth name of the printer, or null if unknown
+     */
+    public LabelTemplate get(MacAddress address, String name) {
+        if (address != null) {
+            LabelTemplate template = mByAddress.get(address);
+            if (template != null) {
+                return template;
+            }
+        }
+        Map<String, LabelTemplate> byModel = mByModel;
+        LabelTemplate best = null;
+        if (name != null) {
+            String lowerName = name.toLowerCase(Locale.US);
+            int bestLength = -1;
+            for (Map.Entry<String, LabelTemplate> e : byModel.entrySet()) {
+                String model = e.getKey();
+                if (model.length() > bestLength && lowerName.startsWith(model)) {
+                    best = e.getValue();
+                    bestLength = model.length();
+                }
+            }
+        }
+        if (best == null) {
+            best = byModel.get(DEFAULT_NAME);
+        }
+        return best != null ? best : mBuiltIn;
+    }
+
+    /**
+     * Return the number of templates loaded from files.
+     */
+    public int size() {
+        return mByAddress.size() + mByModel.size();
+    }
+
+    private synchronized void reload(File file) {
+        String name = file.getName();
+        String key = name.substring(0, name.length() - SUFFIX.length());
+        MacAddress address = MacAddress.tryParse(key);
+        String model = key.toLowerCase(Locale.US);
+
+        LabelTemplate template = null;
+        Exception error = null;
+        if (file.exists()) {
+            try {
+                template = load(file);
+            } catch (IOException e) {
+                error = e;
+            } catch (IllegalArgumentException e) {
+                error = e;
+            }
+            if (error != null) {
+                // Keep the template loaded before
+                Log.e(TAG, "template " + file + " not loaded", error);
+                notifyLoaded(file, error);
+                return;
+            }
+        }
+
+        // A deleted file leaves template null, which removes it
+        if (address != null) {
+            Map<MacAddress, LabelTemplate> byAddress =
+                    new HashMap<MacAddress, LabelTemplate>(mByAddress);
+            put(byAddress, address, template);
+            mByAddress = byAddress;
+        } else {
+            Map<String, LabelTemplate> byModel = new HashMap<String, LabelTemplate>(mByModel);
+            put(byModel, model, template);
+            mByModel = byModel;
+        }
+        Log.d(TAG, (template != null ? "loaded " : "removed ") + file);
+        notifyLoaded(file, null);
+    }
+
+    private static <K> void put(Map<K, LabelTemplate> map, K key, LabelTemplate template) {
+        if (template != null) {
+            map.put(key, template);
+        } else {
+            map.remove(key);
+        }
+    }
+
+    private LabelTemplate load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return LabelTemplate.load(in, mCharset);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void notifyLoaded(File file, Exception error) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTemplateLoaded(file, error);
+        }
+    }
+}
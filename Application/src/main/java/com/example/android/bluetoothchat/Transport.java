@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+
+/**
+ * The link layer behind {@link BluetoothChatService}. The default
+ * {@link RfcommTransport} talks Bluetooth SPP; {@link TcpTransport} lets the
+ * same connect and write path run over plain TCP, for example on loopback.
+ */
+public interface Transport {
+
+    /**
+     * Receives the time the steps of an outgoing connection take, from
+     * inside {@link TransportSocket#connect()}.
+     */
+    interface ConnectListener {
+        void record(String address, ConnectTimings.Phase phase, long nanos);
+    }
+
+    /**
+     * Create a client socket for the given address. The socket is not
+     * connected until {@link TransportSocket#connect()} is called.
+     *
+     * @param address The remote address, in the transport's own format
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    TransportSocket createSocket(String address, boolean secure) throws IOException;
+
+    /**
+     * Open a server socket that listens for incoming connections.
+     *
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    TransportServerSocket listen(boolean secure) throws IOException;
+
+    /**
+     * Called before an outgoing connection is made, so the transport can
+     * stop anything that would slow it down.
+     */
+    void prepareConnect();
+
+    /**
+     * Set the listener told the time of the {@link ConnectTimings.Phase#LOOKUP}
+     * and {@link ConnectTimings.Phase#CONNECT} steps of each connection
+     * made from now on, or null for none.
+     */
+    void setConnectListener(ConnectListener listener);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A listening socket made through a {@link Transport}.
+ */
+public interface TransportServerSocket extends Closeable {
+
+    /**
+     * Wait for an incoming connection. This is a blocking call and will
+     * only return on a successful connection or an exception.
+     */
+    TransportSocket accept() throws IOException;
+
+    void close() throws IOException;
+}